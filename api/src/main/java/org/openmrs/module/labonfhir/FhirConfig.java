@@ -1,8 +1,20 @@
 package org.openmrs.module.labonfhir;
 
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.openmrs.module.labonfhir.LabOnFhirConfig.AuthType;
+import org.openmrs.module.labonfhir.api.fhir.LabHttpCompression;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
@@ -16,28 +28,68 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 
 @Configuration("labOrderFhirConfig")
 public class FhirConfig {
-    
+
     @Autowired
     private LabOnFhirConfig config;
-    
+
     @Autowired
     @Qualifier("fhirR4")
     private FhirContext fhirContext;
-    
-    private void configureFhirHttpClient(CloseableHttpClient httpClient) {
-        IRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(this.fhirContext);
-        clientFactory.setHttpClient(httpClient);
-        fhirContext.setRestfulClientFactory(clientFactory);
+
+    @Autowired
+    private LabHttpCompression httpCompression;
+
+    /**
+     * The HTTP client used to talk to the LIS. Connections are pooled and kept alive, so Task sends and result polling
+     * don't pay for a new connection and TLS handshake on every request.
+     */
+    @Bean(name = "labOrderHttpClient", destroyMethod = "close")
+    public CloseableHttpClient getHttpClient() throws Exception {
+        SSLConnectionSocketFactory sslSocketFactory = config.getAuthType().equals(AuthType.SSL) ?
+                config.sslConnectionSocketFactory() : SSLConnectionSocketFactory.getSocketFactory();
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory).build();
+
+        long keepAliveMillis = TimeUnit.SECONDS.toMillis(config.getHttpKeepAliveSeconds());
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                socketFactoryRegistry, null, null, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+        // all requests go to the same LIS, so a single route may use the whole pool
+        connectionManager.setMaxTotal(config.getHttpMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(config.getHttpMaxConnections());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(config.getHttpConnectTimeout())
+                .setConnectionRequestTimeout(config.getHttpConnectTimeout())
+                .setSocketTimeout(config.getHttpSocketTimeout()).build();
+
+        // servers that don't announce a keep-alive timeout get the configured one
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? serverKeepAlive : keepAliveMillis;
+        };
+
+        // with client certificates, connections are otherwise tied to the TLS principal and never handed to another
+        // thread, so every thread would do its own handshake
+        HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy).disableConnectionState()
+                .evictExpiredConnections().evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+
+        // gzipped responses are always accepted; request bodies are only gzipped when the LIS is known to support it
+        if (config.isHttpCompressionEnabled()) {
+            httpCompression.configure(builder);
+        }
+        return builder.build();
     }
-    
+
     @Bean(name ="labOrderFhirClient")
     public IGenericClient getFhirClient() throws Exception {
-        if (config.getAuthType().equals(AuthType.SSL)) {
-            CloseableHttpClient client = HttpClientBuilder.create().setSSLSocketFactory(config.sslConnectionSocketFactory()).build();
-            configureFhirHttpClient(client);
-        }
+        // a client factory of our own, so the shared fhirR4 context used by the fhir2 module keeps its HTTP client
+        IRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(fhirContext);
+        clientFactory.setHttpClient(getHttpClient());
+        clientFactory.setServerValidationMode(fhirContext.getRestfulClientFactory().getServerValidationMode());
 
-        IGenericClient fhirClient = fhirContext.newRestfulGenericClient(config.getLisUrl());
+        IGenericClient fhirClient = clientFactory.newGenericClient(config.getLisUrl());
         if (config.getAuthType().equals(AuthType.BASIC)) {
             BasicAuthInterceptor authInterceptor = new BasicAuthInterceptor(config.getLisUserName(),
                     config.getLisPassword());
@@ -45,5 +97,5 @@ public class FhirConfig {
         }
         return fhirClient;
     }
-    
+
 }
@@ -69,6 +69,7 @@ public class LabOnFhirActivator extends BaseModuleActivator implements Applicati
 	
 	@Override
 	public void stopped() {
+		// unsubscribes from events, then drains the event and result workers and stops the outbox drainer
 		if (lisManager != null) {
 			lisManager.disableLisConnector();
 		}
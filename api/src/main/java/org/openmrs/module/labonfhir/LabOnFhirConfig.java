@@ -13,6 +13,9 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -20,8 +23,11 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.hl7.fhir.r4.model.Practitioner;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.module.fhir2.api.FhirPractitionerService;
+import org.openmrs.module.labonfhir.api.LabWorkerPool.SaturationPolicy;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -32,7 +38,7 @@ import org.springframework.stereotype.Component;
 
 @Component
 @Configuration
-public class LabOnFhirConfig implements ApplicationContextAware {
+public class LabOnFhirConfig implements ApplicationContextAware, GlobalPropertyListener {
 
 	public static final String GP_LIS_URL = "labonfhir.lisUrl";
 
@@ -66,8 +72,56 @@ public class LabOnFhirConfig implements ApplicationContextAware {
 
 	public static final String GP_ADD_OBS_AS_TASK_INPUT = "labonfhir.addObsAsTaskInput";
 
+	public static final String GP_TASK_INPUT_OBS_CONCEPT_UUIDS = "labonfhir.taskInputObsConceptUuids";
+
 	public static final String GP_FILTER_ORDER_BY_TEST_UUIDS = "labonfhir.filterOrderBytestUuids";
 
+	public static final String GP_OUTBOUND_BATCH_SIZE = "labonfhir.outboundBatchSize";
+
+	public static final String GP_OUTBOUND_BATCH_WINDOW_MILLIS = "labonfhir.outboundBatchWindowMillis";
+
+	public static final String GP_EVENT_WORKER_THREADS = "labonfhir.eventWorkerThreads";
+
+	public static final String GP_EVENT_QUEUE_CAPACITY = "labonfhir.eventQueueCapacity";
+
+	public static final String GP_EVENT_QUEUE_SATURATION_POLICY = "labonfhir.eventQueueSaturationPolicy";
+
+	public static final String GP_HTTP_MAX_CONNECTIONS = "labonfhir.httpMaxConnections";
+
+	public static final String GP_HTTP_KEEP_ALIVE_SECONDS = "labonfhir.httpKeepAliveSeconds";
+
+	public static final String GP_HTTP_CONNECT_TIMEOUT = "labonfhir.httpConnectTimeout";
+
+	public static final String GP_HTTP_SOCKET_TIMEOUT = "labonfhir.httpSocketTimeout";
+
+	public static final String GP_HTTP_COMPRESSION = "labonfhir.httpCompression";
+
+	public static final String GP_DELTA_SEND_SHARED_RESOURCES = "labonfhir.deltaSendSharedResources";
+
+	public static final String GP_SUPPORTING_INFO_CACHE_SIZE = "labonfhir.supportingInfoCacheSize";
+
+	public static final String GP_SUPPORTING_INFO_CACHE_TTL_MINUTES = "labonfhir.supportingInfoCacheTtlMinutes";
+
+	public static final String GP_ORDER_COALESCE_WINDOW_MILLIS = "labonfhir.orderCoalesceWindowMillis";
+
+	public static final String GP_TASK_UPDATE_PREFETCH_DEPTH = "labonfhir.taskUpdatePrefetchDepth";
+
+	public static final String GP_DIAGNOSTIC_REPORT_FETCH_SIZE = "labonfhir.diagnosticReportFetchSize";
+
+	public static final String GP_TASK_UPDATE_PAGE_SIZE = "labonfhir.taskUpdatePageSize";
+
+	public static final String GP_BACKFILL_PARALLELISM = "labonfhir.backfillParallelism";
+
+	public static final String GP_BACKFILL_SLICE_DAYS = "labonfhir.backfillSliceDays";
+
+	public static final String GP_RESULT_WORKER_THREADS = "labonfhir.resultWorkerThreads";
+
+	public static final String GP_SUBSCRIPTION_SECRET = "labonfhir.subscriptionSecret";
+
+	public static final String GP_SUBSCRIPTION_SAFETY_NET_MINUTES = "labonfhir.subscriptionSafetyNetMinutes";
+
+	private static final String GP_PREFIX = "labonfhir.";
+
 	public enum AuthType{
 		SSL,
 		BASIC
@@ -84,19 +138,71 @@ public class LabOnFhirConfig implements ApplicationContextAware {
 	@Autowired
 	FhirPractitionerService practitionerService;
 
+	private final AtomicReference<LabOnFhirSettings> settings = new AtomicReference<>();
+
+	/**
+	 * @return the current snapshot of the labonfhir.* global properties, loading it on first use
+	 */
+	public LabOnFhirSettings getSettings() {
+		LabOnFhirSettings current = settings.get();
+		if (current == null) {
+			settings.compareAndSet(null, loadSettings(null, null));
+			current = settings.get();
+		}
+		return current;
+	}
+
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(GP_PREFIX);
+	}
+
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		log.debug("Reloading Lab on FHIR settings after change to " + newValue.getProperty());
+		settings.set(loadSettings(newValue.getProperty(), newValue.getPropertyValue()));
+	}
+
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		log.debug("Reloading Lab on FHIR settings after deletion of " + propertyName);
+		settings.set(loadSettings(propertyName, null));
+	}
+
+	private synchronized LabOnFhirSettings loadSettings(String changedProperty, String changedValue) {
+		// all of the module's properties in one query, rather than one per property
+		Map<String, String> properties = new HashMap<>();
+		for (GlobalProperty property : administrationService.getGlobalPropertiesByPrefix(GP_PREFIX)) {
+			if (property.getPropertyValue() != null) {
+				properties.put(property.getProperty(), property.getPropertyValue());
+			}
+		}
+
+		// the listener may be notified before the change is visible to a fresh read
+		if (changedProperty != null) {
+			if (changedValue != null) {
+				properties.put(changedProperty, changedValue);
+			} else {
+				properties.remove(changedProperty);
+			}
+		}
+		return new LabOnFhirSettings(properties);
+	}
+
 	public SSLConnectionSocketFactory sslConnectionSocketFactory() throws Exception {
 		return new SSLConnectionSocketFactory(sslContext());
 	}
 
 	public SSLContext sslContext() throws Exception {
 		SSLContextBuilder sslContextBuilder =  SSLContextBuilder.create();
+		LabOnFhirSettings settings = getSettings();
 		try {
-			if(administrationService.getGlobalProperty(GP_KEYSTORE_PATH) != null && !administrationService.getGlobalProperty(GP_KEYSTORE_PATH).isEmpty()) {
-				String keyPassword = administrationService.getGlobalProperty(GP_KEYSTORE_PASS);
-				File truststoreFile = new File(administrationService.getGlobalProperty(GP_TRUSTSTORE_PATH));
-				String truststorePassword = administrationService.getGlobalProperty(GP_TRUSTSTORE_PASS);
+			if(settings.get(GP_KEYSTORE_PATH) != null && !settings.get(GP_KEYSTORE_PATH).isEmpty()) {
+				String keyPassword = settings.get(GP_KEYSTORE_PASS);
+				File truststoreFile = new File(settings.get(GP_TRUSTSTORE_PATH));
+				String truststorePassword = settings.get(GP_TRUSTSTORE_PASS);
 
-				KeyStore keystore = loadKeystore(administrationService.getGlobalProperty(GP_KEYSTORE_PATH));
+				KeyStore keystore = loadKeystore(settings.get(GP_KEYSTORE_PATH));
 
 				sslContextBuilder.loadKeyMaterial(keystore, keyPassword.toCharArray())
 						.loadTrustMaterial(truststoreFile, truststorePassword.toCharArray());
@@ -110,7 +216,7 @@ public class LabOnFhirConfig implements ApplicationContextAware {
 
 	public String getLisUrl() {
 		//return GP_OPENELIS_URL
-		String url = administrationService.getGlobalProperty(GP_LIS_URL);
+		String url = getSettings().get(GP_LIS_URL);
 
 		if(StringUtils.isBlank(url)) {
 			url = TEMP_DEFAULT_LIS_URL;
@@ -120,51 +226,210 @@ public class LabOnFhirConfig implements ApplicationContextAware {
 	}
 
 	public Boolean getActivateFhirPush() {
-		String activatePush = administrationService.getGlobalProperty(GP_ACTIVATE_FHIR_PUSH, "true");
+		String activatePush = getSettings().get(GP_ACTIVATE_FHIR_PUSH, "true");
 		return Boolean.valueOf(activatePush);
 	}
 
 	public String getLisUserUuid() {
-		return administrationService.getGlobalProperty(GP_LIS_USER_UUID);
+		return getSettings().get(GP_LIS_USER_UUID);
 	}
 
 	public String getLisUserName() {
-		return administrationService.getGlobalProperty(GP_USER_NAME);
+		return getSettings().get(GP_USER_NAME);
 	}
 
 	public String getLisPassword() {
-		return administrationService.getGlobalProperty(GP_PASSWORD);
+		return getSettings().get(GP_PASSWORD);
 	}
 
 	public String getPatientIdentifierUuid() {
-		return administrationService.getGlobalProperty(GP_PATIENT_IDENTIFIER_UUID ,"05a29f94-c0ed-11e2-94be-8c13b969e334");
+		return getSettings().get(GP_PATIENT_IDENTIFIER_UUID ,"05a29f94-c0ed-11e2-94be-8c13b969e334");
 	}
 
 	public String getLisIdentifierSystemUrl() {
-		return administrationService.getGlobalProperty(GP_LIS_IDENTIFIER_SYSTEM_URL ,"http://openelis-global.org/pat_nationalId");
+		return getSettings().get(GP_LIS_IDENTIFIER_SYSTEM_URL ,"http://openelis-global.org/pat_nationalId");
 	}
 
 	public String getOrderTestUuids() {
-		return administrationService.getGlobalProperty(GP_ORDER_TEST_UUIDS, "160046AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA,165254AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+		return getSettings().get(GP_ORDER_TEST_UUIDS, "160046AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA,165254AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
 	}
 
 	public String getLabUpdateTriggerObject() {
-		return administrationService.getGlobalProperty(GP_LAB_UPDATE_TRIGGER_OBJECT, "Encounter");
+		return getSettings().get(GP_LAB_UPDATE_TRIGGER_OBJECT, "Encounter");
 	}
 
 	public Boolean filterOrderByTestUuuids() {
-		String filterOrders = administrationService.getGlobalProperty(GP_FILTER_ORDER_BY_TEST_UUIDS, "true");
+		String filterOrders = getSettings().get(GP_FILTER_ORDER_BY_TEST_UUIDS, "true");
 		return Boolean.valueOf(filterOrders);
 	}
 
 	public Boolean addObsAsTaskInput() {
-		String addObsAsTaskInPut = administrationService.getGlobalProperty(GP_ADD_OBS_AS_TASK_INPUT, "false");
+		String addObsAsTaskInPut = getSettings().get(GP_ADD_OBS_AS_TASK_INPUT, "false");
 		return Boolean.valueOf(addObsAsTaskInPut);
 	}
 
+	/**
+	 * @return the concept uuids of the Obs added as Task inputs; empty adds every Obs of the encounter
+	 */
+	public String getTaskInputObsConceptUuids() {
+		return getSettings().get(GP_TASK_INPUT_OBS_CONCEPT_UUIDS, "");
+	}
+
+	/**
+	 * @return the maximum number of Task bundles merged into one outbound transaction; 1 disables batching
+	 */
+	public int getOutboundBatchSize() {
+		return getSettings().getInt(GP_OUTBOUND_BATCH_SIZE, 1);
+	}
+
+	/**
+	 * @return how often, in milliseconds, the lab outbox is checked when no new Task wakes up its drain
+	 */
+	public long getOutboundBatchWindowMillis() {
+		return getSettings().getInt(GP_OUTBOUND_BATCH_WINDOW_MILLIS, 2000);
+	}
+
+	public int getEventWorkerThreads() {
+		return getSettings().getInt(GP_EVENT_WORKER_THREADS, 4);
+	}
+
+	public int getEventQueueCapacity() {
+		return getSettings().getInt(GP_EVENT_QUEUE_CAPACITY, 1000);
+	}
+
+	public SaturationPolicy getEventQueueSaturationPolicy() {
+		String policy = getSettings().get(GP_EVENT_QUEUE_SATURATION_POLICY);
+		if (StringUtils.isBlank(policy)) {
+			return SaturationPolicy.BLOCK;
+		}
+
+		try {
+			return SaturationPolicy.valueOf(policy.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Invalid value '" + policy + "' for " + GP_EVENT_QUEUE_SATURATION_POLICY + ", using BLOCK");
+			return SaturationPolicy.BLOCK;
+		}
+	}
+
+	public int getHttpMaxConnections() {
+		return getSettings().getInt(GP_HTTP_MAX_CONNECTIONS, 20);
+	}
+
+	/**
+	 * @return how long an idle connection to the LIS is kept open, unless the server announces a shorter time
+	 */
+	public int getHttpKeepAliveSeconds() {
+		return getSettings().getInt(GP_HTTP_KEEP_ALIVE_SECONDS, 30);
+	}
+
+	/**
+	 * @return the timeout, in milliseconds, for connecting to the LIS and for waiting for a pooled connection
+	 */
+	public int getHttpConnectTimeout() {
+		return getSettings().getInt(GP_HTTP_CONNECT_TIMEOUT, 10000);
+	}
+
+	/**
+	 * @return the timeout, in milliseconds, for waiting on data from the LIS
+	 */
+	public int getHttpSocketTimeout() {
+		return getSettings().getInt(GP_HTTP_SOCKET_TIMEOUT, 60000);
+	}
+
+	/**
+	 * @return whether request bodies sent to the LIS are gzipped
+	 */
+	public boolean isHttpCompressionEnabled() {
+		return getSettings().getBoolean(GP_HTTP_COMPRESSION, false);
+	}
+
+	/**
+	 * @return whether Patient, Encounter, Location and Practitioner resources the LIS already has are left out of bundles
+	 */
+	public boolean isDeltaSendEnabled() {
+		return getSettings().getBoolean(GP_DELTA_SEND_SHARED_RESOURCES, false);
+	}
+
+	/**
+	 * @return the maximum number of supporting-info Observations, and of DiagnosticReports, kept in memory; 0 disables
+	 *         the cache
+	 */
+	public int getSupportingInfoCacheSize() {
+		return getSettings().getInt(GP_SUPPORTING_INFO_CACHE_SIZE, 5000);
+	}
+
+	public int getSupportingInfoCacheTtlMinutes() {
+		return getSettings().getInt(GP_SUPPORTING_INFO_CACHE_TTL_MINUTES, 60);
+	}
+
+	/**
+	 * @return how long, in milliseconds, orders of one encounter are collected into a single Task in Order trigger
+	 *         mode; 0 creates a Task for every order
+	 */
+	public long getOrderCoalesceWindowMillis() {
+		return getSettings().getInt(GP_ORDER_COALESCE_WINDOW_MILLIS, 0);
+	}
+
+	/**
+	 * @return how many Task update pages may be fetched ahead of the page being processed; 0 fetches them one by one
+	 */
+	public int getTaskUpdatePrefetchDepth() {
+		return getSettings().getInt(GP_TASK_UPDATE_PREFETCH_DEPTH, 1);
+	}
+
+	/**
+	 * @return the maximum number of DiagnosticReports fetched from the LIS in one search
+	 */
+	public int getDiagnosticReportFetchSize() {
+		return getSettings().getInt(GP_DIAGNOSTIC_REPORT_FETCH_SIZE, 50);
+	}
+
+	/**
+	 * @return the number of Tasks asked of the LIS per page when polling for results
+	 */
+	public int getTaskUpdatePageSize() {
+		return getSettings().getInt(GP_TASK_UPDATE_PAGE_SIZE, 100);
+	}
+
+	/**
+	 * @return the number of backfill slices fetched from the LIS at once
+	 */
+	public int getBackfillParallelism() {
+		return getSettings().getInt(GP_BACKFILL_PARALLELISM, 4);
+	}
+
+	/**
+	 * @return the length, in days, of the slices the backfill window is split into
+	 */
+	public int getBackfillSliceDays() {
+		return getSettings().getInt(GP_BACKFILL_SLICE_DAYS, 30);
+	}
+
+	/**
+	 * @return the number of threads saving the results of LIS Tasks at once, one per processor unless set
+	 */
+	public int getResultWorkerThreads() {
+		return getSettings().getInt(GP_RESULT_WORKER_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the secret the LIS sends with Task Subscription notifications, or null if notifications are authenticated
+	 *         as an OpenMRS user
+	 */
+	public String getSubscriptionSecret() {
+		return StringUtils.trimToNull(getSettings().get(GP_SUBSCRIPTION_SECRET));
+	}
+
+	/**
+	 * @return how often, in minutes, completed Tasks are still polled for once the LIS notifies of them
+	 */
+	public int getSubscriptionSafetyNetMinutes() {
+		return getSettings().getInt(GP_SUBSCRIPTION_SAFETY_NET_MINUTES, 60);
+	}
 
 	public AuthType getAuthType() {
-		String authTypeGp = administrationService.getGlobalProperty(GP_AUTH_TYPE);
+		String authTypeGp = getSettings().get(GP_AUTH_TYPE, AuthType.BASIC.name());
 		switch (authTypeGp.toUpperCase()) {
 			case "BASIC":
 				return AuthType.BASIC;
@@ -188,11 +453,11 @@ public class LabOnFhirConfig implements ApplicationContextAware {
 		KeyStore keystore = null;
 
 		try {
-			File file = new File(administrationService.getGlobalProperty(GP_KEYSTORE_PATH));
+			File file = new File(getSettings().get(GP_KEYSTORE_PATH));
 			is = new FileInputStream(file);
 			keystore = KeyStore.getInstance(KeyStore.getDefaultType());
 
-			String password = administrationService.getGlobalProperty(GP_KEYSTORE_PASS);
+			String password = getSettings().get(GP_KEYSTORE_PASS);
 
 			keystore.load(is, password.toCharArray());
 
@@ -0,0 +1,62 @@
+package org.openmrs.module.labonfhir;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An immutable snapshot of the labonfhir.* global properties. {@link LabOnFhirConfig} replaces it as a whole whenever
+ * one of the properties changes, so readers never see a half-updated configuration and never hit the database.
+ */
+public final class LabOnFhirSettings {
+
+	private static Log log = LogFactory.getLog(LabOnFhirSettings.class);
+
+	private final Map<String, String> properties;
+
+	public LabOnFhirSettings(Map<String, String> properties) {
+		this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
+	}
+
+	/**
+	 * @return the value of the given property, or null if it is not set
+	 */
+	public String get(String property) {
+		return properties.get(property);
+	}
+
+	/**
+	 * @return the value of the given property, or the default value if it is not set
+	 */
+	public String get(String property, String defaultValue) {
+		String value = properties.get(property);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBoolean(String property, boolean defaultValue) {
+		return Boolean.valueOf(get(property, String.valueOf(defaultValue)));
+	}
+
+	public int getInt(String property, int defaultValue) {
+		String value = properties.get(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value '" + value + "' for " + property + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public Map<String, String> asMap() {
+		return properties;
+	}
+}
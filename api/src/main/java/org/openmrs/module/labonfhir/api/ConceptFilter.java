@@ -0,0 +1,110 @@
+package org.openmrs.module.labonfhir.api;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of concepts compiled from a comma-separated list of concept uuids, as found in global properties like
+ * {@link org.openmrs.module.labonfhir.LabOnFhirConfig#GP_ORDER_TEST_UUIDS}. Concepts are matched on their id, which
+ * doesn't require initializing a lazily loaded concept; uuids that couldn't be resolved when compiling are still
+ * matched by uuid.
+ */
+public final class ConceptFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(ConceptFilter.class);
+
+	private final String source;
+
+	private final BitSet conceptIds;
+
+	private final List<Integer> conceptIdList;
+
+	private final Set<String> unresolvedUuids;
+
+	private ConceptFilter(String source, BitSet conceptIds, Set<String> unresolvedUuids) {
+		this.source = source;
+		this.conceptIds = conceptIds;
+		this.unresolvedUuids = Collections.unmodifiableSet(unresolvedUuids);
+
+		List<Integer> ids = new ArrayList<>(conceptIds.cardinality());
+		for (int id = conceptIds.nextSetBit(0); id >= 0; id = conceptIds.nextSetBit(id + 1)) {
+			ids.add(id);
+		}
+		this.conceptIdList = Collections.unmodifiableList(ids);
+	}
+
+	public static ConceptFilter compile(String conceptUuids, ConceptService conceptService) {
+		BitSet conceptIds = new BitSet();
+		Set<String> unresolvedUuids = new HashSet<>();
+
+		if (conceptUuids != null) {
+			for (String uuid : conceptUuids.split(",")) {
+				uuid = uuid.trim();
+				if (StringUtils.isBlank(uuid)) {
+					continue;
+				}
+
+				Concept concept = conceptService.getConceptByUuid(uuid);
+				if (concept != null && concept.getConceptId() != null) {
+					conceptIds.set(concept.getConceptId());
+				} else {
+					log.warn("Could not find concept {}, it will be matched by uuid", uuid);
+					unresolvedUuids.add(uuid);
+				}
+			}
+		}
+
+		return new ConceptFilter(conceptUuids, conceptIds, unresolvedUuids);
+	}
+
+	/**
+	 * @return the comma-separated list of uuids this filter was compiled from
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public boolean isEmpty() {
+		return conceptIds.isEmpty() && unresolvedUuids.isEmpty();
+	}
+
+	public boolean accepts(Concept concept) {
+		if (concept == null) {
+			return false;
+		}
+
+		if (concept.getConceptId() != null && conceptIds.get(concept.getConceptId())) {
+			return true;
+		}
+
+		return !unresolvedUuids.isEmpty() && unresolvedUuids.contains(concept.getUuid());
+	}
+
+	public boolean acceptsConceptId(Integer conceptId) {
+		return conceptId != null && conceptIds.get(conceptId);
+	}
+
+	/**
+	 * @return the ids of the concepts that could be resolved when compiling
+	 */
+	public List<Integer> getConceptIds() {
+		return conceptIdList;
+	}
+
+	/**
+	 * @return the uuids that didn't resolve to a concept when compiling
+	 */
+	public Set<String> getUnresolvedUuids() {
+		return unresolvedUuids;
+	}
+}
@@ -1,28 +1,35 @@
 package org.openmrs.module.labonfhir.api;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
-import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Task;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterProvider;
 import org.openmrs.Obs;
 import org.openmrs.Order;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.OrderService;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.fhir2.FhirConstants;
-import org.openmrs.module.fhir2.api.FhirObservationService;
 import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.fhir2.api.translators.ConceptTranslator;
+import org.openmrs.module.fhir2.api.translators.ObservationValueTranslator;
 import org.openmrs.module.labonfhir.LabOnFhirConfig;
 import org.openmrs.module.labonfhir.api.event.OrderCreationListener;
 import org.openmrs.module.labonfhir.api.fhir.OrderCreationException;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
 @Component
 public class LabOrderHandler {
@@ -34,11 +41,47 @@ public class LabOrderHandler {
 	private FhirTaskService taskService;
 
 	@Autowired
-	private FhirObservationService observationService;
+	private ConceptTranslator conceptTranslator;
 
+	@Autowired
+	private ObservationValueTranslator observationValueTranslator;
+
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@Autowired
+	private OrderService orderService;
+
+	private volatile ConceptFilter testConceptFilter;
+
+	private volatile ConceptFilter taskInputConceptFilter;
+
+	/**
+	 * @return the configured test concepts, recompiled whenever {@link LabOnFhirConfig#GP_ORDER_TEST_UUIDS} changes
+	 */
+	public ConceptFilter getTestConceptFilter() {
+		String orderTestUuids = config.getOrderTestUuids();
+		ConceptFilter filter = testConceptFilter;
+		if (filter == null || !orderTestUuids.equals(filter.getSource())) {
+			filter = ConceptFilter.compile(orderTestUuids, conceptService);
+			testConceptFilter = filter;
+		}
+		return filter;
+	}
+
+	@Transactional
 	public Task createOrder(Order order) throws OrderCreationException {
-		//TDO: MAKE THIS A GLOBAL CONFIG
-		final String REQUIRED_TESTS_UUIDS = config.getOrderTestUuids(); // GeneXpert
+		return createOrder(Collections.singletonList(order));
+	}
+
+	/**
+	 * Creates one Task based on all the given orders, which have to belong to the same encounter
+	 */
+	@Transactional
+	public Task createOrder(List<? extends Order> orders) throws OrderCreationException {
 		// Exit if Test Order doesn't contain required tests
 
 		/* -- Original code re-written to allow orders whose concept uuids are in the list
@@ -58,39 +101,29 @@ public class LabOrderHandler {
 		*/
 
 		//New logic
-		boolean mappedTestsExist = false;
-		
-		
-		if (Arrays.stream(REQUIRED_TESTS_UUIDS.split(",")).anyMatch(s -> s.equals(order.getConcept().getUuid()))) {
-				mappedTestsExist = true;
-		}
-	
-		if (!mappedTestsExist) {
+		ConceptFilter testConcepts = getTestConceptFilter();
+		List<Order> labOrders = orders.stream().filter(order -> testConcepts.accepts(order.getConcept()))
+				.collect(Collectors.toList());
+		if (labOrders.isEmpty()) {
 			return null;
 		}
+		Encounter encounter = labOrders.get(0).getEncounter();
 
 		List<Task.ParameterComponent> taskInputs = null;
 		if (config.addObsAsTaskInput()) {
-			taskInputs = new ArrayList<>();
-			for (Obs obs : order.getEncounter().getObs()) {
-				Observation observation = observationService.get(obs.getUuid());
-				Task.ParameterComponent input = new Task.ParameterComponent();
-				input.setType(observation.getCode());
-				input.setValue(observation.getValue());
-				taskInputs.add(input);
-			}
+			taskInputs = createTaskInputs(encounter.getEncounterId());
 		}
 		// Create References
-		List<Reference> basedOnRefs = Collections.singletonList(
-				newReference(order.getUuid(), FhirConstants.SERVICE_REQUEST));
+		List<Reference> basedOnRefs = labOrders.stream()
+				.map(order -> newReference(order.getUuid(), FhirConstants.SERVICE_REQUEST)).collect(Collectors.toList());
 
-		Reference forReference = newReference(order.getPatient().getUuid(), FhirConstants.PATIENT);
+		Reference forReference = newReference(encounter.getPatient().getUuid(), FhirConstants.PATIENT);
 
 		Reference ownerRef = newReference(config.getLisUserUuid(), FhirConstants.PRACTITIONER);
 
-		Reference encounterRef = newReference(order.getEncounter().getUuid(), FhirConstants.ENCOUNTER);
+		Reference encounterRef = newReference(encounter.getUuid(), FhirConstants.ENCOUNTER);
 
-		Optional<EncounterProvider> requesterProvider = order.getEncounter().getActiveEncounterProviders().stream()
+		Optional<EncounterProvider> requesterProvider = encounter.getActiveEncounterProviders().stream()
 				.findFirst();
 
 		Reference requesterRef = requesterProvider.map(
@@ -99,20 +132,81 @@ public class LabOrderHandler {
 		// Create Task Resource for given Order
 		Task newTask = createTask(basedOnRefs, forReference, ownerRef, encounterRef ,taskInputs);
 
-		if (order.getEncounter().getActiveEncounterProviders().isEmpty()) {
+		if (encounter.getActiveEncounterProviders().isEmpty()) {
 			newTask.setRequester(requesterRef);
 		}
 
 		// Save the new Task Resource
 		try {
-			newTask = taskService.create(newTask);
+			newTask = saveTask(newTask);
 		}
 		catch (DAOException e) {
-			throw new OrderCreationException("Exception occurred while creating task for order " + order.getId());
+			throw new OrderCreationException("Exception occurred while creating task for order(s) " + labOrders.stream()
+					.map(order -> String.valueOf(order.getId())).collect(Collectors.joining(", ")));
 		}
 		return newTask;
 	}
 
+	/**
+	 * Creates one Task for orders waiting in the lab outbox, see {@link LabOutboxEntry#isPendingOrder()}, and deletes
+	 * their entries in the same transaction, so the orders either get their Task or stay in the outbox
+	 *
+	 * @param entries the entries of orders of the same encounter
+	 * @return the Task, or null if none of the orders is a lab test order
+	 */
+	@Transactional
+	public Task createPendingOrder(List<LabOutboxEntry> entries) throws OrderCreationException {
+		List<Order> orders = new ArrayList<>(entries.size());
+		List<Integer> entryIds = new ArrayList<>(entries.size());
+		for (LabOutboxEntry entry : entries) {
+			Order order = orderService.getOrderByUuid(entry.getOrderUuid());
+			if (order != null) {
+				orders.add(order);
+			}
+			entryIds.add(entry.getId());
+		}
+
+		Task task = orders.isEmpty() ? null : createOrder(orders);
+		labOnFhirService.deleteOutboxEntries(entryIds);
+		return task;
+	}
+
+	/**
+	 * Translates the Obs of an encounter into Task inputs in one pass over Obs loaded with their concepts, rather than
+	 * re-reading and translating every Obs through the {@link org.openmrs.module.fhir2.api.FhirObservationService}
+	 */
+	List<Task.ParameterComponent> createTaskInputs(Integer encounterId) {
+		ConceptFilter inputConcepts = getTaskInputConceptFilter();
+		List<Obs> obsList = labOnFhirService.getTaskInputObs(encounterId, inputConcepts.getConceptIds(),
+				inputConcepts.getUnresolvedUuids());
+
+		// forms repeat the same questions, so each concept is only translated once
+		Map<Integer, CodeableConcept> codes = new HashMap<>();
+		List<Task.ParameterComponent> taskInputs = new ArrayList<>(obsList.size());
+		for (Obs obs : obsList) {
+			Task.ParameterComponent input = new Task.ParameterComponent();
+			input.setType(codes.computeIfAbsent(obs.getConcept().getConceptId(),
+					conceptId -> conceptTranslator.toFhirResource(obs.getConcept())));
+			input.setValue(observationValueTranslator.toFhirResource(obs));
+			taskInputs.add(input);
+		}
+		return taskInputs;
+	}
+
+	/**
+	 * @return the concepts of the Obs added as Task inputs, recompiled whenever
+	 *         {@link LabOnFhirConfig#GP_TASK_INPUT_OBS_CONCEPT_UUIDS} changes
+	 */
+	ConceptFilter getTaskInputConceptFilter() {
+		String inputConceptUuids = config.getTaskInputObsConceptUuids();
+		ConceptFilter filter = taskInputConceptFilter;
+		if (filter == null || !inputConceptUuids.equals(filter.getSource())) {
+			filter = ConceptFilter.compile(inputConceptUuids, conceptService);
+			taskInputConceptFilter = filter;
+		}
+		return filter;
+	}
+
 	private Task createTask(List<Reference> basedOnRefs, Reference forReference, Reference ownerRef,
 			Reference encounterRef ,List<Task.ParameterComponent> taskInputs) {
 		Task newTask = new Task();
@@ -128,77 +222,90 @@ public class LabOrderHandler {
 		return newTask;
 	}
 
+	@Transactional
 	public Task createOrder(Encounter encounter) throws OrderCreationException {
-		if (encounter.getOrders().isEmpty()) {
+		ConceptFilter testConcepts = getTestConceptFilter();
+		if (testConcepts.isEmpty() || encounter.getOrders().isEmpty()) {
 			return null;
 		}
-		final String REQUIRED_TESTS_UUIDS = config.getOrderTestUuids();
 
-		List<Order> ordersList = new ArrayList<>();
-		for (Order order : encounter.getOrders() ) {
-			if (Arrays.stream(REQUIRED_TESTS_UUIDS.split(",")).anyMatch(s -> s.equals(order.getConcept().getUuid()))){
-				ordersList.add(order);
+		List<String> orderUuids = new ArrayList<>();
+		for (Order order : encounter.getOrders()) {
+			if (testConcepts.accepts(order.getConcept())) {
+				orderUuids.add(order.getUuid());
 			}
 		}
 
-        if (ordersList.isEmpty()) {
-            return null;
-        } else {
-			// Create References
-            List<Reference> basedOnRefs = ordersList.stream().map(order -> {
-                AtomicReference<Order> orders = new AtomicReference<>();
-                orders.set(order);
-
-                if (orders.get() != null) {
-                    return newReference(orders.get().getUuid(), FhirConstants.SERVICE_REQUEST);
-                } else {
-                    return null;
-                }
-            }).collect(Collectors.toList());
-
-            Reference forReference = newReference(encounter.getPatient().getUuid(), FhirConstants.PATIENT);
-
-            Reference ownerRef = newReference(config.getLisUserUuid(), FhirConstants.PRACTITIONER);
-
-            Reference encounterRef = newReference(encounter.getUuid(), FhirConstants.ENCOUNTER);
-
-            Reference locationRef = newReference(encounter.getLocation().getUuid(), FhirConstants.LOCATION);
-
-            Optional<EncounterProvider> requesterProvider = encounter.getActiveEncounterProviders().stream().findFirst();
-
-            Reference requesterRef = requesterProvider.isPresent() ?
-                    newReference(requesterProvider.get().getUuid(), FhirConstants.PRACTITIONER) :
-                    null;
-
-            List<Task.ParameterComponent> taskInputs = null;
-            if (config.addObsAsTaskInput()) {
-                taskInputs = new ArrayList<>();
-                for (Obs obs : encounter.getObs()) {
-                    Observation observation = observationService.get(obs.getUuid());
-                    Task.ParameterComponent input = new Task.ParameterComponent();
-                    input.setType(observation.getCode());
-                    input.setValue(observation.getValue());
-                    taskInputs.add(input);
-                }
-            }
-
-            // Create Task Resource for given Order
-            Task newTask = createTask(basedOnRefs, forReference, ownerRef, encounterRef, taskInputs);
-            newTask.setLocation(locationRef);
-
-            if (!encounter.getActiveEncounterProviders().isEmpty()) {
-                newTask.setRequester(requesterRef);
-            }
-
-            // Save the new Task Resource
-            try {
-                newTask = taskService.create(newTask);
-            } catch (DAOException e) {
-                throw new OrderCreationException("Exception occurred while creating task for encounter " + encounter.getId());
-            }
-            return newTask;
-        }
-    }
+		if (orderUuids.isEmpty()) {
+			return null;
+		}
+
+		String requesterUuid = encounter.getActiveEncounterProviders().stream().findFirst()
+				.map(EncounterProvider::getUuid).orElse(null);
+		String locationUuid = encounter.getLocation() != null ? encounter.getLocation().getUuid() : null;
+
+		return createOrder(new EncounterOrderSummary(encounter.getId(), encounter.getUuid(),
+				encounter.getPatient().getUuid(), locationUuid, requesterUuid, orderUuids));
+	}
+
+	/**
+	 * Creates the Task for an encounter from its {@link EncounterOrderSummary}, so the encounter, its orders and its
+	 * providers don't need to be loaded
+	 */
+	@Transactional
+	public Task createOrder(EncounterOrderSummary summary) throws OrderCreationException {
+		if (summary == null || summary.getOrderUuids().isEmpty()) {
+			return null;
+		}
+
+		// Create References
+		List<Reference> basedOnRefs = summary.getOrderUuids().stream()
+				.map(orderUuid -> newReference(orderUuid, FhirConstants.SERVICE_REQUEST)).collect(Collectors.toList());
+
+		Reference forReference = newReference(summary.getPatientUuid(), FhirConstants.PATIENT);
+
+		Reference ownerRef = newReference(config.getLisUserUuid(), FhirConstants.PRACTITIONER);
+
+		Reference encounterRef = newReference(summary.getEncounterUuid(), FhirConstants.ENCOUNTER);
+
+		List<Task.ParameterComponent> taskInputs = null;
+		if (config.addObsAsTaskInput()) {
+			taskInputs = createTaskInputs(summary.getEncounterId());
+		}
+
+		// Create Task Resource for given Order
+		Task newTask = createTask(basedOnRefs, forReference, ownerRef, encounterRef, taskInputs);
+
+		if (summary.getLocationUuid() != null) {
+			newTask.setLocation(newReference(summary.getLocationUuid(), FhirConstants.LOCATION));
+		}
+
+		if (summary.getRequesterUuid() != null) {
+			newTask.setRequester(newReference(summary.getRequesterUuid(), FhirConstants.PRACTITIONER));
+		}
+
+		// Save the new Task Resource
+		try {
+			newTask = saveTask(newTask);
+		}
+		catch (DAOException e) {
+			throw new OrderCreationException(
+					"Exception occurred while creating task for encounter " + summary.getEncounterId());
+		}
+		return newTask;
+	}
+
+	/**
+	 * Creates the Task and, if Tasks are pushed to the LIS, its outbox entry. Both are written in the transaction of the
+	 * calling createOrder method, so no Task can be created that the outbox drain doesn't know about.
+	 */
+	private Task saveTask(Task newTask) {
+		newTask = taskService.create(newTask);
+		if (config.getActivateFhirPush()) {
+			labOnFhirService.saveOrUpdateOutboxEntry(new LabOutboxEntry(newTask.getIdElement().getIdPart()));
+		}
+		return newTask;
+	}
 
 	private Reference newReference(String uuid, String type) {
 		return new Reference().setReference(type + "/" + uuid).setType(type);
@@ -11,7 +11,10 @@ import org.openmrs.event.Event;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.labonfhir.LabOnFhirConfig;
 import org.openmrs.module.labonfhir.api.event.EncounterCreationListener;
+import org.openmrs.module.labonfhir.api.event.LabResourceChangeListener;
 import org.openmrs.module.labonfhir.api.event.OrderCreationListener;
+import org.openmrs.module.labonfhir.api.fhir.LabOutboxDrainer;
+import org.openmrs.module.labonfhir.api.scheduler.TaskNotificationImporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +25,8 @@ public class LabOrderManager implements GlobalPropertyListener {
 
 	private static final Logger log = LoggerFactory.getLogger(LabOrderManager.class);
 
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
 	public void setDaemonToken(DaemonToken daemonToken) {
 		this.daemonToken = daemonToken;
 	}
@@ -37,8 +42,21 @@ public class LabOrderManager implements GlobalPropertyListener {
 	@Autowired
 	private OrderCreationListener orderListener;
 
+	@Autowired
+	private LabOutboxDrainer outboxDrainer;
+
+	@Autowired
+	private LabResourceChangeListener resourceChangeListener;
+
+	@Autowired
+	private TaskNotificationImporter notificationImporter;
+
 	private final AtomicBoolean isRunning = new AtomicBoolean(false);
 
+	private LabWorkerPool eventWorkers;
+
+	private LabWorkerPool resultWorkers;
+
 	@Override
 	public boolean supportsPropertyName(String propertyName) {
 		return LabOnFhirConfig.GP_LIS_URL.equals(propertyName);
@@ -62,14 +80,18 @@ public class LabOrderManager implements GlobalPropertyListener {
 
 	public void enableLisConnector() {
 		log.info("Enabling LIS FHIR Connector for "+config.getLabUpdateTriggerObject());
+		startEventWorkers();
+		startResultWorkers();
 		if(config.getLabUpdateTriggerObject().equals("Encounter")) {
 			encounterListener.setDaemonToken(daemonToken);
+			encounterListener.setWorkerPool(eventWorkers);
 
 			if (!isRunning.get()) {
 				Event.subscribe(Encounter.class, Event.Action.CREATED.toString(), encounterListener);
 			}
 		} else if(config.getLabUpdateTriggerObject().equals("Order")) {
 			orderListener.setDaemonToken(daemonToken);
+			orderListener.setWorkerPool(eventWorkers);
 
 			if (!isRunning.get()) {
 				Event.subscribe(Order.class, Event.Action.CREATED.toString(), orderListener);
@@ -79,6 +101,12 @@ public class LabOrderManager implements GlobalPropertyListener {
 			return;
 		}
 
+		if (!isRunning.get()) {
+			resourceChangeListener.subscribe();
+		}
+		outboxDrainer.start(daemonToken);
+		notificationImporter.start(daemonToken);
+
 		isRunning.set(true);
 	}
 
@@ -89,6 +117,66 @@ public class LabOrderManager implements GlobalPropertyListener {
 		} else if (isRunning.get() && config.getLabUpdateTriggerObject().equals("Encounter")) {
 			Event.unsubscribe(Encounter.class, Event.Action.CREATED, encounterListener);
 		}
+		if (isRunning.get()) {
+			resourceChangeListener.unsubscribe();
+		}
+		stopEventWorkers();
+		notificationImporter.stop();
+		stopResultWorkers();
+		outboxDrainer.stop();
 		isRunning.set(false);
 	}
+
+	/**
+	 * @return the pool processing Encounter / Order events, or null if the connector is disabled
+	 */
+	public LabWorkerPool getEventWorkers() {
+		return eventWorkers;
+	}
+
+	/**
+	 * @return the pool saving the results of LIS Tasks, or null if the connector is disabled or results are saved on the
+	 *         scheduler thread
+	 */
+	public LabWorkerPool getResultWorkers() {
+		return resultWorkers;
+	}
+
+	private synchronized void startEventWorkers() {
+		if (eventWorkers != null && eventWorkers.isRunning()) {
+			return;
+		}
+
+		eventWorkers = new LabWorkerPool("Lab on FHIR event workers", config.getEventWorkerThreads(),
+		        config.getEventQueueCapacity(), config.getEventQueueSaturationPolicy(), daemonToken);
+		eventWorkers.start();
+	}
+
+	private synchronized void stopEventWorkers() {
+		if (eventWorkers != null) {
+			eventWorkers.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+		}
+	}
+
+	private synchronized void startResultWorkers() {
+		if (resultWorkers != null && resultWorkers.isRunning()) {
+			return;
+		}
+
+		int threads = config.getResultWorkerThreads();
+		if (threads <= 1) {
+			resultWorkers = null;
+			return;
+		}
+		// the poll waits for every Task it hands over, so it's slowed down rather than losing any
+		resultWorkers = new LabWorkerPool("Lab on FHIR result workers", threads, threads * 2,
+		        LabWorkerPool.SaturationPolicy.BLOCK, daemonToken);
+		resultWorkers.start();
+	}
+
+	private synchronized void stopResultWorkers() {
+		if (resultWorkers != null) {
+			resultWorkers.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+		}
+	}
 }
@@ -0,0 +1,245 @@
+package org.openmrs.module.labonfhir.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of long-lived daemon workers fed from a bounded queue. Each worker runs inside a daemon thread, so
+ * submitted work is authenticated, but unlike {@link Daemon#runInDaemonThread} no new thread is created per piece of
+ * work. Each piece of work gets a session of its own, so one that fails or is rolled back leaves nothing behind for the
+ * next.
+ */
+public class LabWorkerPool {
+
+	private static final Logger log = LoggerFactory.getLogger(LabWorkerPool.class);
+
+	private static final long POLL_MILLIS = 500;
+
+	/**
+	 * What {@link #submit(Runnable)} does when the queue is full
+	 */
+	public enum SaturationPolicy {
+		/** wait for space in the queue, slowing down the submitter */
+		BLOCK,
+		/** drop the work and log it */
+		DISCARD,
+		/** run the work in a new daemon thread, as was done before the pool existed */
+		NEW_THREAD
+	}
+
+	private final String name;
+
+	private final int size;
+
+	private final BlockingQueue<Runnable> queue;
+
+	private final SaturationPolicy saturationPolicy;
+
+	private final DaemonToken daemonToken;
+
+	private final List<Thread> workers = new ArrayList<>();
+
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+
+	private final AtomicLong completedCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private volatile boolean running = false;
+
+	public LabWorkerPool(String name, int size, int queueCapacity, SaturationPolicy saturationPolicy,
+	    DaemonToken daemonToken) {
+		this.name = name;
+		this.size = Math.max(1, size);
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+		this.saturationPolicy = saturationPolicy;
+		this.daemonToken = daemonToken;
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+
+		for (int i = 0; i < size; i++) {
+			workers.add(Daemon.runInDaemonThread(() -> withOwnSessions(this::work), daemonToken));
+		}
+		log.info("Started {} with {} workers and a queue of {}", name, size, queue.remainingCapacity());
+	}
+
+	/**
+	 * Queues the given work, applying the {@link SaturationPolicy} if the queue is full
+	 *
+	 * @return false if the work was discarded
+	 */
+	public boolean submit(Runnable work) {
+		if (!running) {
+			rejectedCount.incrementAndGet();
+			log.warn("{} is not running, discarding work", name);
+			return false;
+		}
+
+		if (queue.offer(work)) {
+			return true;
+		}
+
+		switch (saturationPolicy) {
+			case BLOCK:
+				try {
+					while (running) {
+						if (queue.offer(work, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+							return true;
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case NEW_THREAD:
+				Daemon.runInDaemonThread(work, daemonToken);
+				return true;
+			default:
+				break;
+		}
+
+		rejectedCount.incrementAndGet();
+		log.warn("{} is saturated ({} queued, {} active), discarding work", name, queue.size(), activeWorkers.get());
+		return false;
+	}
+
+	/**
+	 * Stops accepting work and waits up to the given time for queued work to finish. Work still queued after that is
+	 * run on a daemon thread of its own rather than dropped, which is waited for up to the given time again.
+	 */
+	public synchronized void shutdown(long timeoutMillis) {
+		if (!running) {
+			return;
+		}
+		running = false;
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Thread worker : workers) {
+			try {
+				worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		for (Thread worker : workers) {
+			if (worker.isAlive()) {
+				worker.interrupt();
+			}
+		}
+		workers.clear();
+
+		List<Runnable> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		if (!remaining.isEmpty()) {
+			log.warn("{} shut down with {} unprocessed items, running them before stopping", name, remaining.size());
+			Thread drain = Daemon.runInDaemonThread(() -> withOwnSessions(() -> remaining.forEach(this::run)),
+			    daemonToken);
+			try {
+				drain.join(timeoutMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (drain.isAlive()) {
+				log.warn("{} is still running its unprocessed items in the background", name);
+			}
+		}
+		log.info("Stopped {}", name);
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getPoolSize() {
+		return size;
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getActiveWorkers() {
+		return activeWorkers.get();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private void work() {
+		while (running || !queue.isEmpty()) {
+			Runnable work;
+			try {
+				work = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			if (work != null) {
+				run(work);
+			}
+		}
+	}
+
+	/**
+	 * Runs the given loop with the daemon thread's own session closed, as each piece of work it runs opens one, and
+	 * reopens it for the daemon thread to close
+	 */
+	private void withOwnSessions(Runnable loop) {
+		Context.closeSession();
+		try {
+			loop.run();
+		}
+		finally {
+			Context.openSession();
+		}
+	}
+
+	private void run(Runnable work) {
+		activeWorkers.incrementAndGet();
+		try {
+			// the thread stays a daemon thread, so the new session is authenticated as the daemon user
+			Context.openSession();
+			work.run();
+		}
+		catch (Exception e) {
+			log.error("Unexpected error in {}", name, e);
+		}
+		finally {
+			activeWorkers.decrementAndGet();
+			completedCount.incrementAndGet();
+			try {
+				Context.closeSession();
+			}
+			catch (Exception e) {
+				log.error("Could not close the session of a piece of work in {}", name, e);
+			}
+		}
+	}
+}
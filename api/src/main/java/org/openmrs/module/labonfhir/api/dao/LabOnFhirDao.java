@@ -1,13 +1,32 @@
 package org.openmrs.module.labonfhir.api.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.Query;
 import org.hibernate.criterion.Restrictions;
+import org.openmrs.ConceptMapType;
+import org.openmrs.Obs;
 import org.openmrs.api.APIException;
 import org.openmrs.api.db.hibernate.DbSession;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
 import org.openmrs.module.labonfhir.api.model.FailedTask;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.model.LabPollCheckpoint;
+import org.openmrs.module.labonfhir.api.model.LabResultImport;
 import org.openmrs.module.labonfhir.api.model.TaskRequest;
+import org.openmrs.module.labonfhir.api.model.TaskUpdateSummary;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -48,5 +67,225 @@ public class LabOnFhirDao {
         //return (TaskRequest)getSession().createQuery(hql).uniqueResult();   
         return (TaskRequest)getSession().createQuery(hql).setMaxResults(1).uniqueResult();
     }
-   
+
+    public LabPollCheckpoint getPollCheckpoint(String name) throws APIException {
+        return (LabPollCheckpoint) getSession().createCriteria(LabPollCheckpoint.class).add(Restrictions.eq("name", name))
+                .uniqueResult();
+    }
+
+    public LabPollCheckpoint savePollCheckpoint(LabPollCheckpoint checkpoint) throws APIException {
+        getSession().saveOrUpdate(checkpoint);
+        return checkpoint;
+    }
+
+    public EncounterOrderSummary getEncounterOrderSummary(String encounterUuid, Collection<Integer> conceptIds,
+            Collection<String> conceptUuids) throws APIException {
+        if (conceptIds.isEmpty() && conceptUuids.isEmpty()) {
+            return null;
+        }
+
+        List<String> conceptRestrictions = new ArrayList<>();
+        if (!conceptIds.isEmpty()) {
+            conceptRestrictions.add("o.concept.conceptId in (:conceptIds)");
+        }
+        if (!conceptUuids.isEmpty()) {
+            conceptRestrictions.add("o.concept.uuid in (:conceptUuids)");
+        }
+
+        // one row per matching order and active provider; no Order, Encounter or Concept entity gets loaded. Like
+        // Encounter.getOrders(), voided orders are included
+        Query query = getSession().createQuery(
+                "select e.encounterId, e.uuid, p.uuid, l.uuid, o.uuid, ep.uuid from Order o join o.encounter e"
+                        + " join e.patient p left join e.location l"
+                        + " left join e.encounterProviders ep with ep.voided = false"
+                        + " where e.uuid = :encounterUuid"
+                        + " and (" + String.join(" or ", conceptRestrictions) + ")"
+                        + " order by o.orderId, ep.encounterProviderId");
+        query.setParameter("encounterUuid", encounterUuid);
+        if (!conceptIds.isEmpty()) {
+            query.setParameterList("conceptIds", conceptIds);
+        }
+        if (!conceptUuids.isEmpty()) {
+            query.setParameterList("conceptUuids", conceptUuids);
+        }
+
+        List<Object[]> rows = query.list();
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        Set<String> orderUuids = new LinkedHashSet<>();
+        String requesterUuid = null;
+        for (Object[] row : rows) {
+            orderUuids.add((String) row[4]);
+            if (requesterUuid == null) {
+                requesterUuid = (String) row[5];
+            }
+        }
+
+        Object[] first = rows.get(0);
+        return new EncounterOrderSummary((Integer) first[0], (String) first[1], (String) first[2], (String) first[3],
+                requesterUuid, new ArrayList<>(orderUuids));
+    }
+
+    public String getEncounterLocationUuid(String encounterUuid) throws APIException {
+        return (String) getSession().createQuery(
+                "select l.uuid from Encounter e join e.location l where e.uuid = :encounterUuid")
+                .setParameter("encounterUuid", encounterUuid).uniqueResult();
+    }
+
+    public List<Obs> getTaskInputObs(Integer encounterId, Collection<Integer> conceptIds,
+            Collection<String> conceptUuids) throws APIException {
+        List<String> conceptRestrictions = new ArrayList<>();
+        if (!conceptIds.isEmpty()) {
+            conceptRestrictions.add("c.conceptId in (:conceptIds)");
+        }
+        if (!conceptUuids.isEmpty()) {
+            conceptRestrictions.add("c.uuid in (:conceptUuids)");
+        }
+
+        // the concepts are fetched along so translating them doesn't need a query per Obs; like Encounter.getObs(),
+        // only leaf Obs are returned
+        Query query = getSession().createQuery(
+                "select distinct o from Obs o join fetch o.concept c left join fetch o.valueCoded"
+                        + " where o.encounter.encounterId = :encounterId and o.voided = false"
+                        + " and o.groupMembers is empty"
+                        + (conceptRestrictions.isEmpty() ? "" : " and (" + String.join(" or ", conceptRestrictions) + ")")
+                        + " order by o.obsId");
+        query.setParameter("encounterId", encounterId);
+        if (!conceptIds.isEmpty()) {
+            query.setParameterList("conceptIds", conceptIds);
+        }
+        if (!conceptUuids.isEmpty()) {
+            query.setParameterList("conceptUuids", conceptUuids);
+        }
+        return query.list();
+    }
+
+    public List<TaskUpdateSummary> getTaskUpdateSummaries(Collection<String> taskUuids, String loincUrl)
+            throws APIException {
+        List<TaskUpdateSummary> summaries = new ArrayList<>();
+        if (taskUuids.isEmpty()) {
+            return summaries;
+        }
+
+        // one query per association, so no row is repeated for every combination of basedOn and output
+        Map<String, String> encounterUuids = new LinkedHashMap<>();
+        List<Object[]> tasks = getSession().createQuery(
+                "select t.uuid, er.reference from FhirTask t left join t.encounterReference er"
+                        + " where t.uuid in (:taskUuids)")
+                .setParameterList("taskUuids", taskUuids).list();
+        for (Object[] row : tasks) {
+            encounterUuids.put((String) row[0], (String) row[1]);
+        }
+        if (encounterUuids.isEmpty()) {
+            return summaries;
+        }
+
+        Map<String, List<String>> basedOnReferences = new HashMap<>();
+        List<Object[]> basedOn = getSession().createQuery(
+                "select t.uuid, br.type, br.reference from FhirTask t join t.basedOnReferences br"
+                        + " where t.uuid in (:taskUuids)")
+                .setParameterList("taskUuids", encounterUuids.keySet()).list();
+        for (Object[] row : basedOn) {
+            basedOnReferences.computeIfAbsent((String) row[0], uuid -> new ArrayList<>())
+                    .add(row[1] + "/" + row[2]);
+        }
+
+        // the codes the fhir2 concept translator gives the output types: SAME-AS mappings to the LOINC source
+        Map<String, Set<String>> outputLoincCodes = new HashMap<>();
+        List<Object[]> outputCodes = getSession().createQuery(
+                "select t.uuid, term.code from FhirTask t join t.output o join o.type c join c.conceptMappings m"
+                        + " join m.conceptReferenceTerm term, FhirConceptSource fcs"
+                        + " where t.uuid in (:taskUuids) and m.conceptMapType.uuid = :sameAs"
+                        + " and fcs.conceptSource = term.conceptSource and fcs.url = :loincUrl")
+                .setParameterList("taskUuids", encounterUuids.keySet())
+                .setParameter("sameAs", ConceptMapType.SAME_AS_MAP_TYPE_UUID).setParameter("loincUrl", loincUrl).list();
+        for (Object[] row : outputCodes) {
+            outputLoincCodes.computeIfAbsent((String) row[0], uuid -> new HashSet<>()).add((String) row[1]);
+        }
+
+        for (Map.Entry<String, String> task : encounterUuids.entrySet()) {
+            summaries.add(new TaskUpdateSummary(task.getKey(), task.getValue(),
+                    basedOnReferences.getOrDefault(task.getKey(), Collections.emptyList()),
+                    outputLoincCodes.getOrDefault(task.getKey(), Collections.emptySet())));
+        }
+        return summaries;
+    }
+
+    public LabOutboxEntry saveOrUpdateOutboxEntry(LabOutboxEntry entry) throws APIException {
+        getSession().saveOrUpdate(entry);
+        return entry;
+    }
+
+    public List<LabOutboxEntry> claimOutboxEntries(String claimToken, int maxEntries, Date now, Date claimedUntil)
+            throws APIException {
+        List<Integer> candidateIds = getSession().createQuery(
+                "select e.id from LabOutboxEntry e where e.claimedUntil is null or e.claimedUntil < :now order by e.id")
+                .setParameter("now", now).setMaxResults(maxEntries).list();
+        if (candidateIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // the claim is conditional, so of several nodes draining the same outbox only one gets each entry
+        getSession().createQuery("update LabOutboxEntry e set e.claimToken = :claimToken, e.claimedUntil = :claimedUntil,"
+                + " e.attempts = e.attempts + 1 where e.id in (:ids) and (e.claimedUntil is null or e.claimedUntil < :now)")
+                .setParameter("claimToken", claimToken).setParameter("claimedUntil", claimedUntil)
+                .setParameterList("ids", candidateIds).setParameter("now", now).executeUpdate();
+
+        // the orders of an encounter share one Task, so the ones still waiting for their window are claimed along
+        List<String> encounterUuids = getSession().createQuery(
+                "select distinct e.encounterUuid from LabOutboxEntry e where e.claimToken = :claimToken"
+                        + " and e.orderUuid is not null and e.encounterUuid is not null")
+                .setParameter("claimToken", claimToken).list();
+        if (!encounterUuids.isEmpty()) {
+            getSession().createQuery("update LabOutboxEntry e set e.claimToken = :claimToken,"
+                    + " e.claimedUntil = :claimedUntil, e.attempts = e.attempts + 1 where e.orderUuid is not null"
+                    + " and e.encounterUuid in (:encounterUuids) and (e.claimToken is null or e.claimedUntil < :now)")
+                    .setParameter("claimToken", claimToken).setParameter("claimedUntil", claimedUntil)
+                    .setParameterList("encounterUuids", encounterUuids).setParameter("now", now).executeUpdate();
+        }
+
+        return getSession().createCriteria(LabOutboxEntry.class).add(Restrictions.eq("claimToken", claimToken))
+                .addOrder(org.hibernate.criterion.Order.asc("id")).list();
+    }
+
+    public Date getOrderWindowEnd(String encounterUuid, Date now) throws APIException {
+        // entries that failed before wait for their retry, not for a window
+        return (Date) getSession().createQuery("select min(e.claimedUntil) from LabOutboxEntry e"
+                + " where e.encounterUuid = :encounterUuid and e.orderUuid is not null and e.claimToken is null"
+                + " and e.attempts = 0 and e.claimedUntil > :now").setParameter("encounterUuid", encounterUuid)
+                .setParameter("now", now).uniqueResult();
+    }
+
+    public void deleteOutboxEntries(Collection<Integer> ids) throws APIException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        getSession().createQuery("delete from LabOutboxEntry e where e.id in (:ids)").setParameterList("ids", ids)
+                .executeUpdate();
+    }
+
+    public void releaseOutboxEntry(Integer id, String error, Date retryAfter) throws APIException {
+        getSession().createQuery("update LabOutboxEntry e set e.claimToken = null, e.claimedUntil = :retryAfter,"
+                + " e.lastError = :error where e.id = :id").setParameter("retryAfter", retryAfter)
+                .setParameter("error", StringUtils.abbreviate(error, 1024)).setParameter("id", id).executeUpdate();
+    }
+
+    public List<String> getImportedLisReferences(Collection<String> lisReferences) throws APIException {
+        if (lisReferences.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return getSession().createQuery(
+                "select r.lisReference from LabResultImport r where r.lisReference in (:lisReferences)")
+                .setParameterList("lisReferences", lisReferences).list();
+    }
+
+    public LabResultImport saveResultImport(LabResultImport resultImport) throws APIException {
+        getSession().save(resultImport);
+        // the unique lis_reference is checked now, not when some later statement happens to flush
+        getSession().flush();
+        return resultImport;
+    }
+
 }
@@ -3,13 +3,17 @@ package org.openmrs.module.labonfhir.api.event;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Task;
-import org.openmrs.Encounter;
 import org.openmrs.api.APIException;
-import org.openmrs.api.EncounterService;
+import org.openmrs.module.labonfhir.api.ConceptFilter;
 import org.openmrs.module.labonfhir.api.LabOrderHandler;
 import org.openmrs.module.labonfhir.api.fhir.OrderCreationException;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,12 +23,31 @@ import org.springframework.stereotype.Component;
 @Component("labEncounterListener")
 public class EncounterCreationListener extends LabCreationListener {
 	private static final Logger log = LoggerFactory.getLogger(OrderCreationListener.class);
-	@Autowired
-	private EncounterService encounterService;
 
 	@Autowired
 	private LabOrderHandler handler;
 
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
+	private final AtomicLong eventsFiltered = new AtomicLong();
+
+	private final AtomicLong eventsProcessed = new AtomicLong();
+
+	/**
+	 * @return the number of encounter events dropped because the encounter has no lab test orders
+	 */
+	public long getEventsFiltered() {
+		return eventsFiltered.get();
+	}
+
+	/**
+	 * @return the number of encounter events that went on to Task creation
+	 */
+	public long getEventsProcessed() {
+		return eventsProcessed.get();
+	}
+
 	public void processMessage(Message message) {
 		if (message instanceof MapMessage) {
 			MapMessage mapMessage = (MapMessage) message;
@@ -42,30 +65,32 @@ public class EncounterCreationListener extends LabCreationListener {
 				return;
 			}
 
-			Encounter encounter;
+			// most encounters have no lab orders, so check that before loading anything; the same query reads
+			// everything the Task needs, so the encounter itself is never loaded
+			ConceptFilter testConcepts = handler.getTestConceptFilter();
+			EncounterOrderSummary summary;
 			try {
-				encounter = encounterService.getEncounterByUuid(uuid);
-				log.trace("Fetched encounter {}", encounter);
+				summary = labOnFhirService.getEncounterOrderSummary(uuid, testConcepts.getConceptIds(),
+						testConcepts.getUnresolvedUuids());
 			} catch (APIException e) {
-				log.error("Exception caught while trying to load encounter {}", uuid, e);
+				log.error("Exception caught while trying to load orders for encounter {}", uuid, e);
 				return;
 			}
 
-			// this is written this way so we can solve whether we can handle this encounter
-			// in one pass through the Obs
-			boolean lisOrder = true;
-			boolean testOrder = true;
-
-			if (lisOrder && testOrder) {
-				log.trace("Found order(s) for encounter {}", encounter);
-				try {
-					Task task = handler.createOrder(encounter);
-					sendTask(task);
-				} catch (OrderCreationException e) {
-					log.error("An exception occurred while trying to create the order for encounter {}", encounter, e);
-				}
-			} else {
-				log.trace("No orders found for encounter {}", encounter);
+			if (summary == null) {
+				long filtered = eventsFiltered.incrementAndGet();
+				log.trace("No lab test orders for encounter {} ({} encounters filtered, {} processed)", uuid, filtered,
+						eventsProcessed.get());
+				return;
+			}
+			eventsProcessed.incrementAndGet();
+
+			log.trace("Found order(s) {} for encounter {}", summary.getOrderUuids(), uuid);
+			try {
+				Task task = handler.createOrder(summary);
+				sendTask(task);
+			} catch (OrderCreationException e) {
+				log.error("An exception occurred while trying to create the order for encounter {}", uuid, e);
 			}
 		}
 	}
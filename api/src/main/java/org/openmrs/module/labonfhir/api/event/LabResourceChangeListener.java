@@ -0,0 +1,130 @@
+package org.openmrs.module.labonfhir.api.event;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.Provider;
+import org.openmrs.event.Event;
+import org.openmrs.event.EventListener;
+import org.openmrs.module.fhir2.model.FhirDiagnosticReport;
+import org.openmrs.module.labonfhir.api.fhir.LabLocationCache;
+import org.openmrs.module.labonfhir.api.fhir.LabResourceFingerprints;
+import org.openmrs.module.labonfhir.api.fhir.LabSupportingInfoCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps what the module remembers about resources already sent to the LIS, and the Locations and supporting info cached
+ * for lab bundles, in step with changes made in OpenMRS
+ */
+@Component("labResourceChangeListener")
+public class LabResourceChangeListener implements EventListener {
+
+	private static final Logger log = LoggerFactory.getLogger(LabResourceChangeListener.class);
+
+	private static final List<Class<?>> WATCHED_CLASSES = Arrays.asList(Patient.class, PersonName.class,
+	    PersonAddress.class, PatientIdentifier.class, Encounter.class, Location.class, Provider.class);
+
+	private static final List<Event.Action> WATCHED_ACTIONS = Arrays.asList(Event.Action.UPDATED, Event.Action.VOIDED,
+	    Event.Action.RETIRED, Event.Action.CREATED, Event.Action.PURGED);
+
+	/**
+	 * new Obs and DiagnosticReports can't be cached yet, and there are far too many Obs events to listen to all of them
+	 */
+	private static final List<Class<?>> WATCHED_SUPPORTING_INFO_CLASSES = Arrays.asList(Obs.class,
+	    FhirDiagnosticReport.class);
+
+	private static final List<Event.Action> WATCHED_SUPPORTING_INFO_ACTIONS = Arrays.asList(Event.Action.UPDATED,
+	    Event.Action.VOIDED, Event.Action.UNVOIDED, Event.Action.PURGED);
+
+	@Autowired
+	private LabResourceFingerprints fingerprints;
+
+	@Autowired
+	private LabSupportingInfoCache supportingInfoCache;
+
+	@Autowired
+	private LabLocationCache locationCache;
+
+	public void subscribe() {
+		subscribe(WATCHED_CLASSES, WATCHED_ACTIONS);
+		subscribe(WATCHED_SUPPORTING_INFO_CLASSES, WATCHED_SUPPORTING_INFO_ACTIONS);
+	}
+
+	public void unsubscribe() {
+		unsubscribe(WATCHED_CLASSES, WATCHED_ACTIONS);
+		unsubscribe(WATCHED_SUPPORTING_INFO_CLASSES, WATCHED_SUPPORTING_INFO_ACTIONS);
+	}
+
+	private void subscribe(List<Class<?>> classes, List<Event.Action> actions) {
+		for (Class<?> watchedClass : classes) {
+			for (Event.Action action : actions) {
+				Event.subscribe(watchedClass, action.toString(), this);
+			}
+		}
+	}
+
+	private void unsubscribe(List<Class<?>> classes, List<Event.Action> actions) {
+		for (Class<?> watchedClass : classes) {
+			for (Event.Action action : actions) {
+				Event.unsubscribe(watchedClass, action, this);
+			}
+		}
+	}
+
+	@Override
+	public void onMessage(Message message) {
+		if (!(message instanceof MapMessage)) {
+			return;
+		}
+
+		String className;
+		String uuid;
+		try {
+			MapMessage mapMessage = (MapMessage) message;
+			className = mapMessage.getString("classname");
+			uuid = mapMessage.getString("uuid");
+		}
+		catch (JMSException e) {
+			log.error("Exception caught while trying to read a resource change event", e);
+			return;
+		}
+
+		if (className == null || uuid == null) {
+			return;
+		}
+		log.trace("Handling change to {} {}", className, uuid);
+
+		if (className.equals(Patient.class.getName())) {
+			fingerprints.invalidate("Patient", uuid);
+		} else if (className.equals(PersonName.class.getName()) || className.equals(PersonAddress.class.getName())
+		        || className.equals(PatientIdentifier.class.getName())) {
+			// the event only names the changed name, address or identifier, not its patient
+			fingerprints.invalidateAll("Patient");
+		} else if (className.equals(Encounter.class.getName())) {
+			fingerprints.invalidate("Encounter", uuid);
+		} else if (className.equals(Location.class.getName())) {
+			fingerprints.invalidate("Location", uuid);
+			locationCache.invalidate(uuid);
+		} else if (className.equals(Provider.class.getName())) {
+			fingerprints.invalidate("Practitioner", uuid);
+		} else if (className.equals(Obs.class.getName())) {
+			supportingInfoCache.invalidateObservation(uuid);
+		} else if (className.equals(FhirDiagnosticReport.class.getName())) {
+			supportingInfoCache.invalidateDiagnosticReport(uuid);
+		}
+	}
+}
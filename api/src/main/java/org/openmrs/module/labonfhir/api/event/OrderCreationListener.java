@@ -4,30 +4,48 @@ import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
 
+import java.util.Date;
+
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.Task;
 import org.openmrs.Order;
 import org.openmrs.TestOrder;
 import org.openmrs.api.APIException;
 import org.openmrs.api.OrderService;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
 import org.openmrs.module.labonfhir.api.LabOrderHandler;
+import org.openmrs.module.labonfhir.api.fhir.LabOutboxDrainer;
 import org.openmrs.module.labonfhir.api.fhir.OrderCreationException;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * Creates the Tasks for new test orders. When {@link LabOnFhirConfig#getOrderCoalesceWindowMillis()} is set, the orders
+ * of an encounter that arrive within the window share a single Task, the way they do in Encounter trigger mode: they
+ * wait in the lab outbox, so they survive a restart, and the {@link LabOutboxDrainer} creates their Task once the
+ * window has closed.
+ */
 @Component("labOrderListener")
 public class OrderCreationListener extends LabCreationListener {
-	
+
 	private static final Logger log = LoggerFactory.getLogger(OrderCreationListener.class);
 
 	@Autowired
 	private OrderService orderService;
-	
+
 	@Autowired
 	private LabOrderHandler handler;
 
+	@Autowired
+	private LabOnFhirConfig config;
+
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
 	@Override
 	public void processMessage(Message message) {
 		if (message instanceof MapMessage) {
@@ -59,14 +77,47 @@ public class OrderCreationListener extends LabCreationListener {
 			// in one pass through the Obs
 
 			log.trace("Found order(s) for order {}", order);
-			try {
-				if (order instanceof TestOrder) {
-					Task task = handler.createOrder(order);
-					sendTask(task);
-				}
-			} catch (OrderCreationException e) {
-				log.error("An exception occurred while trying to create the order for order {}", order, e);
+			if (order instanceof TestOrder && !coalesce(order)) {
+				createTask(order);
 			}
 		}
 	}
+
+	/**
+	 * Saves an order in the lab outbox to wait for the coalescing window of its encounter to close
+	 *
+	 * @return false if orders aren't coalesced
+	 */
+	private boolean coalesce(Order order) {
+		long windowMillis = config.getOrderCoalesceWindowMillis();
+		if (windowMillis <= 0 || order.getEncounter() == null) {
+			return false;
+		}
+
+		String encounterUuid = order.getEncounter().getUuid();
+		labOnFhirService.saveOrderOutboxEntry(order.getUuid(), encounterUuid,
+		    new Date(System.currentTimeMillis() + windowMillis));
+		log.debug("Order {} waits for more orders of encounter {}", order.getUuid(), encounterUuid);
+		return true;
+	}
+
+	/**
+	 * Creates the Task of an order. createOrder runs in a transaction of its own, which a failure rolls back, so the
+	 * order is then saved in the lab outbox for the {@link LabOutboxDrainer} to retry, rather than only being logged.
+	 */
+	void createTask(Order order) {
+		try {
+			Task task = handler.createOrder(order);
+			sendTask(task);
+		} catch (OrderCreationException | RuntimeException e) {
+			log.error("An exception occurred while trying to create the order for order {}, it will be retried", order,
+			    e);
+			LabOutboxEntry entry = LabOutboxEntry.forOrder(order.getUuid(),
+			    order.getEncounter() != null ? order.getEncounter().getUuid() : null);
+			entry.setAttempts(1);
+			entry.setLastError(StringUtils.abbreviate(e.getMessage(), 1024));
+			entry.setClaimedUntil(LabOutboxDrainer.getRetryTime(new Date(), 1));
+			labOnFhirService.saveOrUpdateOutboxEntry(entry);
+		}
+	}
 }
@@ -0,0 +1,376 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenAndListParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Task;
+import org.openmrs.module.fhir2.api.FhirDiagnosticReportService;
+import org.openmrs.module.fhir2.api.FhirObservationService;
+import org.openmrs.module.fhir2.api.FhirServiceRequestService;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.fhir2.api.util.FhirUtils;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the transaction bundle a Task is sent to the LIS in: the Task with its patient, owner, encounter,
+ * ServiceRequests and location, and the supporting info of the ServiceRequests
+ */
+@Component
+public class LabBundleFactory {
+
+	private static final Logger log = LoggerFactory.getLogger(LabBundleFactory.class);
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	@Autowired
+	private FhirTaskService fhirTaskService;
+
+	//The two services below are added so that we can include SupportingInfo obs linked in the service request
+	@Autowired
+	private FhirServiceRequestService fhirServiceRequestService;
+	@Autowired
+	private FhirObservationService fhirObservationService;
+
+	@Autowired
+	private FhirDiagnosticReportService fhirDiagnosticReportService;
+
+	@Autowired
+	private LabResourceFingerprints fingerprints;
+
+	@Autowired
+	private LabSupportingInfoCache supportingInfoCache;
+
+	@Autowired
+	private LabLocationCache locationCache;
+
+	public Bundle createLabBundle(Task task) {
+		return createLabBundle(task, false);
+	}
+
+	/**
+	 * @param leaveOutUnchanged whether to leave out the shared resources the LIS already has, see
+	 *            {@link LabResourceFingerprints}
+	 */
+	public Bundle createLabBundle(Task task, boolean leaveOutUnchanged) {
+		TokenAndListParam uuid = new TokenAndListParam().addAnd(new TokenParam(task.getIdElement().getIdPart()));
+		HashSet<Include> includes = new HashSet<>();
+		includes.add(new Include("Task:patient"));
+		includes.add(new Include("Task:owner"));
+		includes.add(new Include("Task:encounter"));
+		includes.add(new Include("Task:based-on"));
+
+		IBundleProvider labBundle = fhirTaskService.searchForTasks(null, null, null, uuid, null, null, includes);
+
+		Bundle transactionBundle = new Bundle();
+		transactionBundle.setType(Bundle.BundleType.TRANSACTION);
+		List<IBaseResource> labResources = labBundle.getAllResources();
+		
+		//Add requisition id (Added as an identifier on Task resource) to serviceRequest(s) in the bundle
+		labResources = insertRequisitionIdOnServReq(labResources);
+
+		//Add eRegister lab order number on ServiceReq resource
+		// labResources = insertLabOrderNumberToServiceRequest(labResources);
+
+		String labUpdateTriggerObject = config.getLabUpdateTriggerObject();
+
+		//Include the location resource in the bundle - Encounter trigger mode
+		if (!task.getLocation().isEmpty() && labUpdateTriggerObject.equals("Encounter")) {
+			labResources.add(locationCache.get(FhirUtils.referenceToId(task.getLocation().getReference()).get()));
+		}
+		//Include the location resource in the bundle - Order trigger mode
+		if(labUpdateTriggerObject.equals("Order")){
+			Location location = locationCache
+			        .getForEncounter(FhirUtils.referenceToId(task.getEncounter().getReference()).get());
+			if (location != null) {
+				labResources.add(location);
+			}
+		}
+		
+		// Add ART Regimen, Pregnancy status, etc. Obs & DiagnosticReport (including Obs linked in DiagReport) linked on ServiceRequest
+		if(!task.getBasedOn().isEmpty()){
+			addSupportingInfo(task, labResources);
+		}
+
+		for (IBaseResource r : labResources) {
+			Resource resource = (Resource) r;
+			if (leaveOutUnchanged && fingerprints.isUnchanged(resource)) {
+				continue;
+			}
+			Bundle.BundleEntryComponent component = transactionBundle.addEntry();
+			component.setResource(resource);
+			component.getRequest().setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+			        .setMethod(Bundle.HTTPVerb.PUT);
+
+		}
+		return transactionBundle;
+	}
+
+	/**
+	 * Adds the Observations and DiagnosticReports referenced as supportingInfo by the ServiceRequests a Task is based on.
+	 * The references of all ServiceRequests are collected first and then loaded with one query per resource type.
+	 */
+	void addSupportingInfo(Task task, List<IBaseResource> labResources) {
+		//(1) get task based on -- ServiceRequest (already in the bundle through the Task:based-on include)
+		List<ServiceRequest> serviceRequests = getBasedOnServiceRequests(task, labResources);
+
+		//(2) collect the supporting info of all of them
+		Set<String> observationIds = new LinkedHashSet<>();
+		Set<String> diagnosticReportIds = new LinkedHashSet<>();
+		for (ServiceRequest serviceRequest : serviceRequests) {
+			for (Reference serviceRequestReference : serviceRequest.getSupportingInfo()) {
+				String resourceId = FhirUtils.referenceToId(serviceRequestReference.getReference()).orElse("null");
+				if (resourceId.equals("null")) { //exclude null (for resources that don't exist)
+					continue;
+				}
+				if ("Observation".equals(serviceRequestReference.getType())) {
+					observationIds.add(resourceId);
+				} else if ("DiagnosticReport".equals(serviceRequestReference.getType())) {
+					diagnosticReportIds.add(resourceId);
+				}
+			}
+		}
+
+		//(3) take them from the cache, loading the missing ones in bulk
+		Map<String, Observation> observations = supportingInfoCache.getObservations(observationIds);
+		Set<String> missingObservationIds = new LinkedHashSet<>(observationIds);
+		missingObservationIds.removeAll(observations.keySet());
+		if (!missingObservationIds.isEmpty()) {
+			for (Observation observation : fhirObservationService.get(missingObservationIds)) {
+				observations.put(observation.getIdElement().getIdPart(), observation);
+				supportingInfoCache.putObservation(observation);
+			}
+		}
+
+		Map<String, List<IBaseResource>> diagnosticReports = supportingInfoCache.getDiagnosticReports(diagnosticReportIds);
+		Set<String> missingDiagnosticReportIds = new LinkedHashSet<>(diagnosticReportIds);
+		missingDiagnosticReportIds.removeAll(diagnosticReports.keySet());
+		Map<String, List<IBaseResource>> loadedDiagnosticReports = getDiagnosticReportsWithResults(
+		    missingDiagnosticReportIds);
+		loadedDiagnosticReports.forEach(supportingInfoCache::putDiagnosticReport);
+		diagnosticReports.putAll(loadedDiagnosticReports);
+
+		//(4) add them to the lab bundle, recoding the Obs for DISA
+		List<String> processedReferences = new ArrayList<>();
+		for (ServiceRequest serviceRequest : serviceRequests) {
+			DateTimeType currRegimenStartDate = null;
+			for (Reference serviceRequestReference : serviceRequest.getSupportingInfo()) {
+				String resourceId = FhirUtils.referenceToId(serviceRequestReference.getReference()).orElse("null");
+				String refDisplay = StringUtils.defaultString(serviceRequestReference.getDisplay());
+				if (resourceId.equals("null") || processedReferences.contains(resourceId)) { //avoid re-adds to the bundle
+					continue;
+				}
+
+				if ("Observation".equals(serviceRequestReference.getType())) {
+					Observation cachedObs = observations.get(resourceId);
+					if (cachedObs == null) {
+						log.warn("Supporting Observation {} could not be found", resourceId);
+						continue;
+					}
+					// the DISA recoding below is specific to this ServiceRequest, so it mustn't reach the cache
+					Observation obsToAdd = cachedObs.copy();
+
+					if (refDisplay.equals("Current Regimen")) {
+						//grab effective date & set additional disa param code
+						currRegimenStartDate = obsToAdd.getEffectiveDateTimeType();
+						obsToAdd.getCode().addCoding(getDISACodingFor("Current Treatment", "CTREA"));
+					} else if (refDisplay.equals("Current Regimen startdate")) {
+						//override date
+						if (currRegimenStartDate != null) {
+							obsToAdd.setValue(currRegimenStartDate);
+						}
+					} else if (refDisplay.contains("Previous Regimen")) {
+						obsToAdd.getCode().addCoding(getDISACodingFor("Previous Treatment", "PTREA"));
+					} else if (refDisplay.equals("Prev VL Results")) {
+						obsToAdd.getCode().addCoding(getDISACodingFor("Previous VL Results", "PVLD"));
+					} else if (refDisplay.equals("First CD4")) {
+						obsToAdd.getCode().addCoding(getDISACodingFor("First CD4", "FCD4"));
+					} else if (refDisplay.equals("Last CD4")) {
+						obsToAdd.getCode().addCoding(getDISACodingFor("Last CD4", "LCD4"));
+					}
+
+					labResources.add(obsToAdd);
+					processedReferences.add(resourceId);
+				} else if ("DiagnosticReport".equals(serviceRequestReference.getType())) {
+					labResources.addAll(diagnosticReports.getOrDefault(resourceId, Collections.emptyList()));
+					processedReferences.add(resourceId);
+				} else {
+					log.error("Found an unhandled reference ... expecting an Observation or DiagnosticReport reference.");
+				}
+			}
+		}
+	}
+
+	private List<ServiceRequest> getBasedOnServiceRequests(Task task, List<IBaseResource> labResources) {
+		Map<String, ServiceRequest> includedServiceRequests = new HashMap<>();
+		for (IBaseResource resource : labResources) {
+			if (resource instanceof ServiceRequest) {
+				includedServiceRequests.put(resource.getIdElement().getIdPart(), (ServiceRequest) resource);
+			}
+		}
+
+		List<String> basedOnIds = new ArrayList<>();
+		List<String> missingIds = new ArrayList<>();
+		for (Reference taskReference : task.getBasedOn()) {
+			if ("ServiceRequest".equals(taskReference.getType())) {
+				String serviceRequestId = FhirUtils.referenceToId(taskReference.getReference()).get();
+				basedOnIds.add(serviceRequestId);
+				if (!includedServiceRequests.containsKey(serviceRequestId)) {
+					missingIds.add(serviceRequestId);
+				}
+			}
+		}
+
+		if (!missingIds.isEmpty()) {
+			for (ServiceRequest serviceRequest : fhirServiceRequestService.get(missingIds)) {
+				includedServiceRequests.put(serviceRequest.getIdElement().getIdPart(), serviceRequest);
+			}
+		}
+
+		return basedOnIds.stream().map(includedServiceRequests::get).filter(Objects::nonNull)
+		        .collect(Collectors.toList());
+	}
+
+	/**
+	 * @return each DiagnosticReport followed by its result Observations, keyed by DiagnosticReport id
+	 */
+	private Map<String, List<IBaseResource>> getDiagnosticReportsWithResults(Set<String> diagnosticReportIds) {
+		Map<String, List<IBaseResource>> diagnosticReports = new HashMap<>();
+		if (diagnosticReportIds.isEmpty()) {
+			return diagnosticReports;
+		}
+
+		TokenOrListParam ids = new TokenOrListParam();
+		diagnosticReportIds.forEach(id -> ids.addOr(new TokenParam(id)));
+		TokenAndListParam diagReportUuids = new TokenAndListParam().addAnd(ids);
+		HashSet<Include> includes = new HashSet<>();
+		includes.add(new Include("DiagnosticReport:result"));
+		List<IBaseResource> resources = fhirDiagnosticReportService
+		        .searchForDiagnosticReports(null, null, null, null, null, diagReportUuids, null, null, includes)
+		        .getAllResources();
+
+		Map<String, IBaseResource> resourcesById = new HashMap<>();
+		for (IBaseResource resource : resources) {
+			resourcesById.put(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource);
+		}
+
+		for (IBaseResource resource : resources) {
+			if (resource instanceof DiagnosticReport) {
+				DiagnosticReport diagnosticReport = (DiagnosticReport) resource;
+				List<IBaseResource> reportResources = new ArrayList<>();
+				reportResources.add(diagnosticReport);
+				for (Reference result : diagnosticReport.getResult()) {
+					String resultId = FhirUtils.referenceToId(result.getReference()).orElse(null);
+					IBaseResource resultResource = resourcesById.get("Observation/" + resultId);
+					if (resultResource != null) {
+						reportResources.add(resultResource);
+					}
+				}
+				diagnosticReports.put(diagnosticReport.getIdElement().getIdPart(), reportResources);
+			}
+		}
+
+		return diagnosticReports;
+	}
+
+	private Coding getDISACodingFor(String name, String code) {
+		String url = "http://health.gov.ls/laboratory-services";
+        return new Coding(url, code, name);
+    }
+
+	private List<IBaseResource> insertRequisitionIdOnServReq(List<IBaseResource> labResources){
+		List <Identifier> taskIdentifiers = new ArrayList<>();
+		Identifier requisitionIdentifier = null;
+		List <IBaseResource> updatedLabResources = new ArrayList<>();
+		Task taskResource = null;
+		for (IBaseResource r : labResources){
+			Resource resource = (Resource) r;
+			if(resource instanceof Task){
+				taskResource = (Task) resource;
+				break;
+			}
+		}
+        
+		if(taskResource != null){
+			//Grab Identifier
+			// taskIdentifiers = taskResource.getIdentifier();
+			requisitionIdentifier = taskResource.getGroupIdentifier();
+
+            //Add Task to list
+			updatedLabResources.add(taskResource);
+			//Add this identifier as requisition Id on All service requests in the list
+            for (IBaseResource r : labResources){
+				Resource resource = (Resource) r;
+				if(resource instanceof ServiceRequest){
+					ServiceRequest serviceRequestResource = (ServiceRequest) resource;
+					Identifier requisitionID = new Identifier().setSystem("eRegister Lab Order Number")
+							.setValue(requisitionIdentifier.getValue());
+					serviceRequestResource.setRequisition(requisitionID);
+					updatedLabResources.add(serviceRequestResource);
+				} else {
+					if(resource instanceof Task){
+						//skip -- The mother Task resource is already in the list
+					} else { //leave all other resources alone (e.g. Patient, Encounter, etc.)
+						updatedLabResources.add(resource);
+					}
+				}
+			}
+	
+		} else { //for some reason There is no Task resource in the bundle ... then don't modify the list
+			updatedLabResources = labResources;
+		}
+		return updatedLabResources;
+	}
+
+	private List<IBaseResource> insertLabOrderNumberToServiceRequest(List<IBaseResource> labResources){
+		List <Identifier> taskIdentifiers = new ArrayList<Identifier>();
+		List <IBaseResource> updatedLabResources = new ArrayList<>();
+		Identifier requisitionIdentifier = null;
+
+		for (IBaseResource r : labResources){
+			Resource resource = (Resource) r;
+			//Find service Request
+			ServiceRequest serviceRequestResource = null;
+			if(resource instanceof ServiceRequest) {
+				serviceRequestResource = (ServiceRequest) resource;
+				//Grab eRegister Lab order number identifier (set as requisition id)
+				requisitionIdentifier = serviceRequestResource.getRequisition();
+				//Add ServiceRequest to list
+				updatedLabResources.add(serviceRequestResource);
+			} else {
+				// Add resource without modifying
+				updatedLabResources.add(resource);
+			}
+		}
+		return updatedLabResources;
+	}
+}
@@ -0,0 +1,123 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openmrs.module.labonfhir.api.model.FailedTask;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pushes lab transaction bundles to the LIS. Several Task bundles can be merged into a single transaction; if the
+ * merged transaction is rejected each bundle is re-sent on its own so that failures are still tracked per Task.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class LabBundleSender {
+
+	private static final Logger log = LoggerFactory.getLogger(LabBundleSender.class);
+
+	@Autowired
+	@Qualifier("labOrderFhirClient")
+	private IGenericClient client;
+
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext ctx;
+
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
+	@Autowired
+	private LabResourceFingerprints fingerprints;
+
+	/**
+	 * Sends the bundle for a single Task, recording a {@link FailedTask} if the LIS rejects it
+	 *
+	 * @return true if the LIS accepted the bundle
+	 */
+	public boolean send(String taskUuid, Bundle labBundle) {
+		try {
+			client.transaction().withBundle(labBundle).execute();
+			fingerprints.acknowledge(labBundle);
+			log.debug(ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(labBundle));
+			return true;
+		}
+		catch (Exception e) {
+			fingerprints.forgetReferences(labBundle);
+			saveFailedTask(taskUuid, e.getMessage());
+			log.error("Failed to send Task with UUID " + taskUuid, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the bundles for several Tasks as one merged transaction
+	 *
+	 * @param labBundles the bundle for each Task, keyed by Task uuid
+	 */
+	public void send(Map<String, Bundle> labBundles) {
+		if (labBundles.isEmpty()) {
+			return;
+		}
+
+		if (labBundles.size() == 1) {
+			Map.Entry<String, Bundle> entry = labBundles.entrySet().iterator().next();
+			send(entry.getKey(), entry.getValue());
+			return;
+		}
+
+		Bundle mergedBundle = mergeBundles(new ArrayList<>(labBundles.values()));
+		try {
+			client.transaction().withBundle(mergedBundle).execute();
+			fingerprints.acknowledge(mergedBundle);
+			log.debug("Sent {} Tasks to the LIS in one transaction of {} entries", labBundles.size(),
+			    mergedBundle.getEntry().size());
+		}
+		catch (Exception e) {
+			// a transaction is all-or-nothing, so fall back to one transaction per Task to find the failing ones
+			log.warn("Batched transaction of {} Tasks was rejected, re-sending them individually", labBundles.size(), e);
+			labBundles.forEach(this::send);
+		}
+	}
+
+	/**
+	 * Merges several transaction bundles into one, keeping only the first entry for each request url so that shared
+	 * resources like the Patient, Encounter and Location are sent once
+	 */
+	public static Bundle mergeBundles(List<Bundle> labBundles) {
+		Bundle mergedBundle = new Bundle();
+		mergedBundle.setType(Bundle.BundleType.TRANSACTION);
+
+		Set<String> requestUrls = new HashSet<>();
+		for (Bundle labBundle : labBundles) {
+			for (Bundle.BundleEntryComponent entry : labBundle.getEntry()) {
+				if (requestUrls.add(entry.getRequest().getUrl())) {
+					mergedBundle.addEntry(entry);
+				}
+			}
+		}
+
+		return mergedBundle;
+	}
+
+	void saveFailedTask(String taskUuid, String error) {
+		FailedTask failedTask = new FailedTask();
+		failedTask.setError(error);
+		failedTask.setIsSent(false);
+		failedTask.setTaskUuid(taskUuid);
+		labOnFhirService.saveOrUpdateFailedTask(failedTask);
+	}
+}
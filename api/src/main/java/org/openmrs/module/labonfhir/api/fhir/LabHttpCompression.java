@@ -0,0 +1,181 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gzip compression of the traffic with the LIS. Request bodies are gzipped before they are sent, and gzipped responses
+ * are decompressed by the HTTP client as usual; the bytes on the wire and the uncompressed bytes are counted both ways
+ * so the compression ratio can be checked.
+ */
+@Component
+public class LabHttpCompression {
+
+	private static final Logger log = LoggerFactory.getLogger(LabHttpCompression.class);
+
+	private static final String GZIP = "gzip";
+
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+
+	private final AtomicLong requestBytes = new AtomicLong();
+
+	private final AtomicLong compressedRequestBytes = new AtomicLong();
+
+	private final AtomicLong responseBytes = new AtomicLong();
+
+	private final AtomicLong compressedResponseBytes = new AtomicLong();
+
+	/**
+	 * Adds the compression interceptors to a client being built. The request body is replaced before the client sets
+	 * the content headers from it; response decompression stays with the client's own content encoding support, so the
+	 * counting interceptors go around it.
+	 */
+	public void configure(HttpClientBuilder builder) {
+		builder.addInterceptorFirst(gzipRequestInterceptor());
+		builder.addInterceptorFirst(countingResponseInterceptor(compressedResponseBytes));
+		builder.addInterceptorLast(countingResponseInterceptor(responseBytes));
+	}
+
+	public long getRequestBytes() {
+		return requestBytes.get();
+	}
+
+	public long getCompressedRequestBytes() {
+		return compressedRequestBytes.get();
+	}
+
+	public long getResponseBytes() {
+		return responseBytes.get();
+	}
+
+	public long getCompressedResponseBytes() {
+		return compressedResponseBytes.get();
+	}
+
+	/**
+	 * @return uncompressed over compressed size of the request bodies sent so far, or 0 if none was sent
+	 */
+	public double getRequestCompressionRatio() {
+		return ratio(requestBytes.get(), compressedRequestBytes.get());
+	}
+
+	/**
+	 * @return uncompressed over compressed size of the gzipped responses received so far, or 0 if none was received
+	 */
+	public double getResponseCompressionRatio() {
+		return ratio(responseBytes.get(), compressedResponseBytes.get());
+	}
+
+	private HttpRequestInterceptor gzipRequestInterceptor() {
+		return (request, context) -> {
+			if (!(request instanceof HttpEntityEnclosingRequest) || request.containsHeader(CONTENT_ENCODING)) {
+				return;
+			}
+
+			HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = entityRequest.getEntity();
+			// an entity that already has an encoding was compressed by an earlier attempt of the same request
+			if (entity == null || entity.getContentEncoding() != null) {
+				return;
+			}
+
+			// the bodies are small enough to be compressed in memory, which keeps the Content-Length header
+			byte[] body;
+			try (InputStream in = entity.getContent()) {
+				body = IOUtils.toByteArray(in);
+			}
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(body.length / 4, 64));
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+				gzip.write(body);
+			}
+
+			ByteArrayEntity gzippedEntity = new ByteArrayEntity(compressed.toByteArray());
+			gzippedEntity.setContentType(entity.getContentType());
+			gzippedEntity.setContentEncoding(GZIP);
+			entityRequest.setEntity(gzippedEntity);
+
+			requestBytes.addAndGet(body.length);
+			compressedRequestBytes.addAndGet(compressed.size());
+			log.debug("Compressed {} request body from {} to {} bytes", request.getRequestLine().getUri(), body.length,
+			    compressed.size());
+		};
+	}
+
+	private static HttpResponseInterceptor countingResponseInterceptor(AtomicLong counter) {
+		return (response, context) -> {
+			if (isGzipped(response)) {
+				response.setEntity(new CountingEntity(response.getEntity(), counter));
+			}
+		};
+	}
+
+	/**
+	 * Checks the Content-Encoding the server sent. The client's decompression removes the header from the response but
+	 * not from the original entity, so this is true both before and after decompression.
+	 */
+	private static boolean isGzipped(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return false;
+		}
+
+		Header encoding = entity.getContentEncoding();
+		if (encoding == null) {
+			encoding = response.getFirstHeader(CONTENT_ENCODING);
+		}
+		return encoding != null && encoding.getValue() != null && encoding.getValue().toLowerCase().contains(GZIP);
+	}
+
+	private static double ratio(long uncompressed, long compressed) {
+		return compressed == 0 ? 0 : (double) uncompressed / compressed;
+	}
+
+	private static class CountingEntity extends HttpEntityWrapper {
+
+		private final AtomicLong counter;
+
+		CountingEntity(HttpEntity entity, AtomicLong counter) {
+			super(entity);
+			this.counter = counter;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new ProxyInputStream(super.getContent()) {
+
+				@Override
+				protected void afterRead(int n) {
+					if (n > 0) {
+						counter.addAndGet(n);
+					}
+				}
+			};
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			try (InputStream in = getContent()) {
+				IOUtils.copy(in, out);
+			}
+		}
+	}
+}
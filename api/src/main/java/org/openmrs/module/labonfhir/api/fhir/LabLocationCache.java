@@ -0,0 +1,66 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.hl7.fhir.r4.model.Location;
+import org.openmrs.module.fhir2.api.FhirLocationService;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the translated Location resources added to lab bundles. Orders come from a handful of facilities, so almost
+ * every bundle needs a Location that was translated before. Entries are evicted through
+ * {@link org.openmrs.module.labonfhir.api.event.LabResourceChangeListener} when the Location changes in OpenMRS.
+ */
+@Component
+public class LabLocationCache {
+
+	private static final int MAX_LOCATIONS = 1000;
+
+	@Autowired
+	private FhirLocationService fhirLocationService;
+
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
+	private final Cache<String, Location> locations = CacheBuilder.newBuilder().maximumSize(MAX_LOCATIONS)
+	        .expireAfterWrite(1, TimeUnit.DAYS).recordStats().build();
+
+	/**
+	 * @return a copy of the Location, translated on the first request only
+	 */
+	public Location get(String uuid) {
+		try {
+			return locations.get(uuid, () -> fhirLocationService.get(uuid)).copy();
+		}
+		catch (ExecutionException | UncheckedExecutionException e) {
+			// keep the exception the location service threw, e.g. a ResourceNotFoundException
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Could not load Location " + uuid, e.getCause());
+		}
+	}
+
+	/**
+	 * @return the Location of an encounter, or null if the encounter has none; the Encounter itself isn't translated
+	 */
+	public Location getForEncounter(String encounterUuid) {
+		String locationUuid = labOnFhirService.getEncounterLocationUuid(encounterUuid);
+		return locationUuid == null ? null : get(locationUuid);
+	}
+
+	public void invalidate(String uuid) {
+		locations.invalidate(uuid);
+	}
+
+	public CacheStats getStats() {
+		return locations.stats();
+	}
+}
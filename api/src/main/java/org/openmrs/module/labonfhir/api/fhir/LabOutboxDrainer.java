@@ -0,0 +1,289 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Task;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.LabOrderHandler;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends the Tasks waiting in the lab outbox to the LIS. Up to {@link LabOnFhirConfig#getOutboundBatchSize()} entries
+ * are claimed at a time and sent as one merged transaction; the outbox is checked whenever a new Task is created and
+ * otherwise every {@link LabOnFhirConfig#getOutboundBatchWindowMillis()}. An entry is only deleted after its Task was
+ * sent, so a Task whose entry was claimed when the server stopped is sent again once the claim expires. The orders
+ * waiting in the outbox for their Task get one Task for each encounter.
+ */
+@Component
+public class LabOutboxDrainer {
+
+	private static final Logger log = LoggerFactory.getLogger(LabOutboxDrainer.class);
+
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	private static final long CLAIM_MILLIS = 5 * 60 * 1000;
+
+	private static final int MAX_ATTEMPTS = 10;
+
+	/**
+	 * The wait before an entry that couldn't be sent is retried, doubled with each further attempt
+	 */
+	static final long RETRY_BACKOFF_MILLIS = 30 * 1000;
+
+	static final long MAX_RETRY_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	@Autowired
+	private LabOnFhirService labOnFhirService;
+
+	@Autowired
+	private FhirTaskService fhirTaskService;
+
+	@Autowired
+	private LabBundleSender sender;
+
+	@Autowired
+	private LabBundleFactory bundleFactory;
+
+	@Autowired
+	private LabOrderHandler handler;
+
+	private final Object lock = new Object();
+
+	private boolean wakeUpRequested = false;
+
+	private volatile boolean running = false;
+
+	private Thread drainer;
+
+	private final AtomicLong sentCount = new AtomicLong();
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of Tasks sent from the outbox since startup
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public void start(DaemonToken daemonToken) {
+		synchronized (lock) {
+			if (running) {
+				return;
+			}
+			running = true;
+			// entries left over from before a restart are sent straight away
+			wakeUpRequested = true;
+		}
+
+		drainer = Daemon.runInDaemonThread(this::drainLoop, daemonToken);
+		log.info("Started draining the lab outbox");
+	}
+
+	/**
+	 * Stops draining; entries that weren't sent yet stay in the outbox
+	 */
+	public void stop() {
+		synchronized (lock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			lock.notifyAll();
+		}
+
+		if (drainer != null) {
+			try {
+				drainer.join(STOP_TIMEOUT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			drainer = null;
+		}
+		log.info("Stopped draining the lab outbox");
+	}
+
+	/**
+	 * Makes the drain check the outbox now rather than at the end of its wait
+	 */
+	public void wakeUp() {
+		synchronized (lock) {
+			wakeUpRequested = true;
+			lock.notifyAll();
+		}
+	}
+
+	private void drainLoop() {
+		while (true) {
+			synchronized (lock) {
+				try {
+					if (running && !wakeUpRequested) {
+						lock.wait(config.getOutboundBatchWindowMillis());
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+
+				if (!running) {
+					return;
+				}
+				wakeUpRequested = false;
+			}
+
+			try {
+				int batchSize = config.getOutboundBatchSize();
+				while (running && drain(batchSize) >= batchSize) {
+					Context.clearSession();
+				}
+			}
+			catch (Exception e) {
+				log.error("Unexpected error while draining the lab outbox", e);
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+	}
+
+	/**
+	 * Claims and sends one batch of outbox entries
+	 *
+	 * @return the number of entries claimed
+	 */
+	int drain(int batchSize) {
+		Date now = new Date();
+		List<LabOutboxEntry> entries = labOnFhirService.claimOutboxEntries(UUID.randomUUID().toString(),
+		    Math.max(batchSize, 1), now, new Date(now.getTime() + CLAIM_MILLIS));
+		if (entries.isEmpty()) {
+			return 0;
+		}
+
+		boolean leaveOutUnchanged = config.isDeltaSendEnabled();
+		Map<String, Bundle> labBundles = new LinkedHashMap<>();
+		List<Integer> entryIds = new ArrayList<>();
+		Map<String, List<LabOutboxEntry>> pendingOrders = new LinkedHashMap<>();
+		for (LabOutboxEntry entry : entries) {
+			if (entry.isPendingOrder()) {
+				String encounterUuid = entry.getEncounterUuid() != null ? entry.getEncounterUuid() : entry.getOrderUuid();
+				pendingOrders.computeIfAbsent(encounterUuid, uuid -> new ArrayList<>()).add(entry);
+				continue;
+			}
+
+			try {
+				Task task = fhirTaskService.get(entry.getTaskUuid());
+				labBundles.put(entry.getTaskUuid(), bundleFactory.createLabBundle(task, leaveOutUnchanged));
+				entryIds.add(entry.getId());
+			}
+			catch (Exception e) {
+				if (entry.getAttempts() >= MAX_ATTEMPTS) {
+					// hand it over to the RetryFailedTasks task rather than claiming it forever
+					log.error("Giving up on sending Task {} from the outbox after {} attempts", entry.getTaskUuid(),
+					    entry.getAttempts(), e);
+					sender.saveFailedTask(entry.getTaskUuid(), e.getMessage());
+					entryIds.add(entry.getId());
+				} else {
+					log.warn("Could not build the lab bundle for Task {}, it will be retried", entry.getTaskUuid(), e);
+					labOnFhirService.releaseOutboxEntry(entry.getId(), e.getMessage(),
+					    getRetryTime(now, entry.getAttempts()));
+				}
+			}
+		}
+
+		// the sender records rejected Tasks as FailedTasks, so every entry is done with after this
+		if (!labBundles.isEmpty()) {
+			sender.send(labBundles);
+		}
+		labOnFhirService.deleteOutboxEntries(entryIds);
+		sentCount.addAndGet(labBundles.size());
+
+		if (!pendingOrders.isEmpty()) {
+			pendingOrders.forEach((encounterUuid, orderEntries) -> createTask(encounterUuid, orderEntries, now));
+			// the entries of the new Tasks are sent by the next drain
+			wakeUp();
+		}
+		return entries.size();
+	}
+
+	/**
+	 * Creates one Task for the waiting orders of an encounter. Every attempt runs in a transaction of its own, so if the
+	 * shared Task can't be created each order is tried for a Task of its own, and only the orders that still fail are
+	 * left in the outbox to be retried.
+	 */
+	private void createTask(String encounterUuid, List<LabOutboxEntry> orderEntries, Date now) {
+		try {
+			handler.createPendingOrder(orderEntries);
+			return;
+		}
+		catch (Exception e) {
+			if (orderEntries.size() == 1) {
+				failOrder(orderEntries.get(0), e, now);
+				return;
+			}
+			log.warn("Could not create one Task for {} orders of encounter {}, creating a Task for each of them",
+			    orderEntries.size(), encounterUuid, e);
+		}
+
+		for (LabOutboxEntry entry : orderEntries) {
+			try {
+				handler.createPendingOrder(Collections.singletonList(entry));
+			}
+			catch (Exception e) {
+				failOrder(entry, e, now);
+			}
+		}
+	}
+
+	private void failOrder(LabOutboxEntry entry, Exception e, Date now) {
+		if (entry.getAttempts() >= MAX_ATTEMPTS) {
+			log.error("Giving up on creating the Task for order {} after {} attempts", entry.getOrderUuid(),
+			    entry.getAttempts(), e);
+			// there is no Task yet, so the failure is recorded against the order
+			sender.saveFailedTask(null, StringUtils.abbreviate(
+			    "Could not create the Task for order " + entry.getOrderUuid() + ": " + e.getMessage(), 255));
+			labOnFhirService.deleteOutboxEntries(Collections.singletonList(entry.getId()));
+		} else {
+			log.warn("Could not create the Task for order {}, it will be retried", entry.getOrderUuid(), e);
+			labOnFhirService.releaseOutboxEntry(entry.getId(), e.getMessage(), getRetryTime(now, entry.getAttempts()));
+		}
+	}
+
+	/**
+	 * An entry that couldn't be sent is retried after {@link #RETRY_BACKOFF_MILLIS} on its first attempt, twice as long
+	 * after each further one and at most after {@link #MAX_RETRY_BACKOFF_MILLIS}, so a Task that keeps failing doesn't
+	 * take a place in every claim until it is given up on
+	 *
+	 * @param now the time of the failed attempt
+	 * @param attempts the attempts made so far, including the failed one
+	 * @return when the entry may be claimed again
+	 */
+	public static Date getRetryTime(Date now, int attempts) {
+		int doublings = Math.min(Math.max(attempts - 1, 0), 30);
+		return new Date(now.getTime() + Math.min(RETRY_BACKOFF_MILLIS << doublings, MAX_RETRY_BACKOFF_MILLIS));
+	}
+}
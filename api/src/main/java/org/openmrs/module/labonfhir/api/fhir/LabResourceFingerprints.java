@@ -0,0 +1,173 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Task;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers a hash of the JSON of the shared resources (Patient, Encounter, Location and Practitioner) the LIS last
+ * accepted, so that bundles can leave out the ones that haven't changed since. The Task and its ServiceRequests are
+ * always sent. Hashes are dropped when the resource changes in OpenMRS, when a bundle referencing it is rejected, and
+ * after a day at the latest.
+ */
+@Component
+public class LabResourceFingerprints {
+
+	private static final Logger log = LoggerFactory.getLogger(LabResourceFingerprints.class);
+
+	private static final Set<String> SHARED_RESOURCE_TYPES = new HashSet<>(
+	        Arrays.asList("Patient", "Encounter", "Location", "Practitioner"));
+
+	private static final int MAX_FINGERPRINTS = 20000;
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext ctx;
+
+	private final Cache<String, String> fingerprints = CacheBuilder.newBuilder().maximumSize(MAX_FINGERPRINTS)
+	        .expireAfterWrite(1, TimeUnit.DAYS).build();
+
+	private final AtomicLong resourcesLeftOut = new AtomicLong();
+
+	private final AtomicLong bytesLeftOut = new AtomicLong();
+
+	private final AtomicLong resourcesSent = new AtomicLong();
+
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	public boolean isEnabled() {
+		return config.isDeltaSendEnabled();
+	}
+
+	/**
+	 * Checks whether the LIS already has this version of a shared resource; the result is counted in the size statistics
+	 *
+	 * @return true if the resource can be left out of the bundle
+	 */
+	public boolean isUnchanged(Resource resource) {
+		if (!isEnabled() || !isShared(resource)) {
+			return false;
+		}
+
+		String json = encode(resource);
+		boolean unchanged = hash(json).equals(fingerprints.getIfPresent(key(resource)));
+		if (unchanged) {
+			resourcesLeftOut.incrementAndGet();
+			bytesLeftOut.addAndGet(json.getBytes(StandardCharsets.UTF_8).length);
+		} else {
+			resourcesSent.incrementAndGet();
+			bytesSent.addAndGet(json.getBytes(StandardCharsets.UTF_8).length);
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Records the shared resources of a bundle the LIS accepted
+	 */
+	public void acknowledge(Bundle bundle) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			Resource resource = entry.getResource();
+			if (isShared(resource)) {
+				fingerprints.put(key(resource), hash(encode(resource)));
+			}
+		}
+	}
+
+	/**
+	 * Forgets the shared resources referenced by the Tasks of a bundle the LIS rejected, so they are all sent again
+	 */
+	public void forgetReferences(Bundle bundle) {
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Task) {
+				Task task = (Task) entry.getResource();
+				for (Reference reference : Arrays.asList(task.getFor(), task.getEncounter(), task.getLocation(),
+				    task.getOwner(), task.getRequester())) {
+					if (reference.getReference() != null) {
+						fingerprints.invalidate(reference.getReference());
+					}
+				}
+			}
+		}
+	}
+
+	public void invalidate(String resourceType, String id) {
+		fingerprints.invalidate(resourceType + "/" + id);
+	}
+
+	/**
+	 * Forgets every fingerprint of a resource type, for changes that can't be traced to a single resource
+	 */
+	public void invalidateAll(String resourceType) {
+		String prefix = resourceType + "/";
+		fingerprints.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+		log.debug("Forgot all {} fingerprints", resourceType);
+	}
+
+	public long getResourcesLeftOut() {
+		return resourcesLeftOut.get();
+	}
+
+	public long getBytesLeftOut() {
+		return bytesLeftOut.get();
+	}
+
+	public long getResourcesSent() {
+		return resourcesSent.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return the share of shared-resource JSON that was left out of bundles, between 0 and 1
+	 */
+	public double getSizeReduction() {
+		long total = bytesLeftOut.get() + bytesSent.get();
+		return total == 0 ? 0 : (double) bytesLeftOut.get() / total;
+	}
+
+	private static boolean isShared(Resource resource) {
+		return resource != null && resource.getIdElement().hasIdPart()
+		        && SHARED_RESOURCE_TYPES.contains(resource.fhirType());
+	}
+
+	private static String key(Resource resource) {
+		return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+	}
+
+	private String encode(Resource resource) {
+		IParser parser = ctx.newJsonParser().setPrettyPrint(false);
+		return parser.encodeResourceToString(resource);
+	}
+
+	private static String hash(String json) {
+		return DigestUtils.sha256Hex(json);
+	}
+}
@@ -0,0 +1,139 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the translated supporting-info Observations and DiagnosticReports (with their result Observations) attached
+ * to lab bundles. They describe the patient's treatment history and change rarely, but are needed again for every order
+ * of the patient.
+ * <p>
+ * Entries are keyed by uuid: an Obs is never changed in place, editing it voids it and creates a new Obs with a new
+ * uuid, so the uuid identifies the version. Voided and purged Obs and changed DiagnosticReports are evicted through
+ * {@link org.openmrs.module.labonfhir.api.event.LabResourceChangeListener}. The cached resources are shared, callers
+ * have to copy them before changing them.
+ */
+@Component
+public class LabSupportingInfoCache {
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	private volatile Cache<String, Observation> observations;
+
+	private volatile Cache<String, List<IBaseResource>> diagnosticReports;
+
+	/**
+	 * uuid of each cached result Observation to the uuid of its DiagnosticReport
+	 */
+	private volatile Cache<String, String> reportsByResult;
+
+	/**
+	 * @return the cached Observations among the given ids, keyed by id
+	 */
+	public Map<String, Observation> getObservations(Collection<String> ids) {
+		return getAll(getObservationCache(), ids);
+	}
+
+	public void putObservation(Observation observation) {
+		getObservationCache().put(observation.getIdElement().getIdPart(), observation);
+	}
+
+	/**
+	 * @return each cached DiagnosticReport among the given ids followed by its result Observations, keyed by id
+	 */
+	public Map<String, List<IBaseResource>> getDiagnosticReports(Collection<String> ids) {
+		return getAll(getDiagnosticReportCache(), ids);
+	}
+
+	public void putDiagnosticReport(String id, List<IBaseResource> reportWithResults) {
+		getDiagnosticReportCache().put(id, reportWithResults);
+		for (IBaseResource resource : reportWithResults) {
+			if (resource instanceof Observation) {
+				reportsByResult.put(resource.getIdElement().getIdPart(), id);
+			}
+		}
+	}
+
+	/**
+	 * Evicts an Obs, and the DiagnosticReport it is a result of
+	 */
+	public void invalidateObservation(String uuid) {
+		getObservationCache().invalidate(uuid);
+		String reportId = reportsByResult.getIfPresent(uuid);
+		if (reportId != null) {
+			getDiagnosticReportCache().invalidate(reportId);
+			reportsByResult.invalidate(uuid);
+		}
+	}
+
+	public void invalidateDiagnosticReport(String uuid) {
+		getDiagnosticReportCache().invalidate(uuid);
+	}
+
+	public void invalidateAll() {
+		getObservationCache().invalidateAll();
+		getDiagnosticReportCache().invalidateAll();
+		reportsByResult.invalidateAll();
+	}
+
+	public CacheStats getObservationStats() {
+		return getObservationCache().stats();
+	}
+
+	public CacheStats getDiagnosticReportStats() {
+		return getDiagnosticReportCache().stats();
+	}
+
+	private Cache<String, Observation> getObservationCache() {
+		if (observations == null) {
+			createCaches();
+		}
+		return observations;
+	}
+
+	private Cache<String, List<IBaseResource>> getDiagnosticReportCache() {
+		if (diagnosticReports == null) {
+			createCaches();
+		}
+		return diagnosticReports;
+	}
+
+	private synchronized void createCaches() {
+		if (observations != null) {
+			return;
+		}
+
+		int size = config.getSupportingInfoCacheSize();
+		int ttlMinutes = config.getSupportingInfoCacheTtlMinutes();
+		reportsByResult = CacheBuilder.newBuilder().maximumSize(size * 10L).expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+		        .build();
+		diagnosticReports = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+		        .recordStats().build();
+		observations = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+		        .recordStats().build();
+	}
+
+	private static <V> Map<String, V> getAll(Cache<String, V> cache, Collection<String> ids) {
+		Map<String, V> cached = new HashMap<>();
+		for (String id : ids) {
+			V value = cache.getIfPresent(id);
+			if (value != null) {
+				cached.put(id, value);
+			}
+		}
+		return cached;
+	}
+}
@@ -0,0 +1,67 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything needed to create a lab Task for an encounter, read with a single projection query instead of walking the
+ * lazy associations of the {@link org.openmrs.Encounter}
+ */
+public class EncounterOrderSummary {
+
+	private final Integer encounterId;
+
+	private final String encounterUuid;
+
+	private final String patientUuid;
+
+	private final String locationUuid;
+
+	private final String requesterUuid;
+
+	private final List<String> orderUuids;
+
+	public EncounterOrderSummary(Integer encounterId, String encounterUuid, String patientUuid, String locationUuid,
+	    String requesterUuid, List<String> orderUuids) {
+		this.encounterId = encounterId;
+		this.encounterUuid = encounterUuid;
+		this.patientUuid = patientUuid;
+		this.locationUuid = locationUuid;
+		this.requesterUuid = requesterUuid;
+		this.orderUuids = Collections.unmodifiableList(new ArrayList<>(orderUuids));
+	}
+
+	public Integer getEncounterId() {
+		return encounterId;
+	}
+
+	public String getEncounterUuid() {
+		return encounterUuid;
+	}
+
+	public String getPatientUuid() {
+		return patientUuid;
+	}
+
+	/**
+	 * @return the uuid of the encounter location, or null if the encounter has none
+	 */
+	public String getLocationUuid() {
+		return locationUuid;
+	}
+
+	/**
+	 * @return the uuid of the first active encounter provider, or null if there is none
+	 */
+	public String getRequesterUuid() {
+		return requesterUuid;
+	}
+
+	/**
+	 * @return the uuids of the encounter's orders for the configured test concepts
+	 */
+	public List<String> getOrderUuids() {
+		return orderUuids;
+	}
+}
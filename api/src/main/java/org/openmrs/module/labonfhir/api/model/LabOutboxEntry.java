@@ -0,0 +1,139 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.openmrs.BaseOpenmrsData;
+
+/**
+ * A Task waiting to be sent to the LIS. Entries are written in the same transaction that creates the Task, claimed by
+ * the outbox drain and deleted once the Task has been sent. An entry with an order uuid instead of a Task uuid is an
+ * order still waiting for its Task, either for the coalescing window of its encounter to close or to retry a Task
+ * that couldn't be created; it isn't claimed before {@link #getClaimedUntil()}, and its entry is deleted in the
+ * transaction that creates the Task.
+ */
+@Entity
+@Table(name = "lab_outbox")
+public class LabOutboxEntry extends BaseOpenmrsData {
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Column(name = "task_uuid", length = 38)
+    private String taskUuid;
+
+    @Column(name = "order_uuid", length = 38)
+    private String orderUuid;
+
+    @Column(name = "encounter_uuid", length = 38)
+    private String encounterUuid;
+
+    @Column(name = "claim_token", length = 38)
+    private String claimToken;
+
+    @Column(name = "claimed_until")
+    private Date claimedUntil;
+
+    @Column(name = "attempts")
+    private int attempts;
+
+    @Column(name = "last_error", length = 1024)
+    private String lastError;
+
+    public LabOutboxEntry() {
+    }
+
+    public LabOutboxEntry(String taskUuid) {
+        this.taskUuid = taskUuid;
+    }
+
+    /**
+     * @return an entry for an order whose Task is yet to be created
+     */
+    public static LabOutboxEntry forOrder(String orderUuid, String encounterUuid) {
+        LabOutboxEntry entry = new LabOutboxEntry();
+        entry.setOrderUuid(orderUuid);
+        entry.setEncounterUuid(encounterUuid);
+        return entry;
+    }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getTaskUuid() {
+        return taskUuid;
+    }
+
+    public void setTaskUuid(String taskUuid) {
+        this.taskUuid = taskUuid;
+    }
+
+    public String getOrderUuid() {
+        return orderUuid;
+    }
+
+    public void setOrderUuid(String orderUuid) {
+        this.orderUuid = orderUuid;
+    }
+
+    public String getEncounterUuid() {
+        return encounterUuid;
+    }
+
+    public void setEncounterUuid(String encounterUuid) {
+        this.encounterUuid = encounterUuid;
+    }
+
+    /**
+     * @return true if the entry is an order waiting for its Task rather than a Task waiting to be sent
+     */
+    public boolean isPendingOrder() {
+        return orderUuid != null;
+    }
+
+    public String getClaimToken() {
+        return claimToken;
+    }
+
+    public void setClaimToken(String claimToken) {
+        this.claimToken = claimToken;
+    }
+
+    public Date getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(Date claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
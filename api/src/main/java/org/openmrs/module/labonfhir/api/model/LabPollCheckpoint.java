@@ -0,0 +1,93 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.openmrs.BaseOpenmrsData;
+
+/**
+ * How far a poll of the LIS got: the meta.lastUpdated and id of the last resource it processed. The lastUpdated is kept
+ * as the LIS wrote it, so the next search starts from the server's own clock and precision.
+ */
+@Entity
+@Table(name = "lab_poll_checkpoint")
+public class LabPollCheckpoint extends BaseOpenmrsData {
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Column(name = "name", nullable = false, unique = true, length = 50)
+    private String name;
+
+    @Column(name = "last_updated", length = 40)
+    private String lastUpdated;
+
+    @Column(name = "last_resource_id")
+    private String lastResourceId;
+
+    @Column(name = "completed")
+    private Boolean completed = false;
+
+    public LabPollCheckpoint() {
+    }
+
+    public LabPollCheckpoint(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the meta.lastUpdated of the last resource processed, as a FHIR instant
+     */
+    public String getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public void setLastUpdated(String lastUpdated) {
+        this.lastUpdated = lastUpdated;
+    }
+
+    /**
+     * @return the id of the last resource processed, or null if the poll hasn't processed any yet
+     */
+    public String getLastResourceId() {
+        return lastResourceId;
+    }
+
+    public void setLastResourceId(String lastResourceId) {
+        this.lastResourceId = lastResourceId;
+    }
+
+    /**
+     * @return true if the poll has a fixed end and got there, like a slice of the backfill
+     */
+    public Boolean getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(Boolean completed) {
+        this.completed = completed;
+    }
+}
@@ -0,0 +1,70 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.openmrs.BaseOpenmrsData;
+
+/**
+ * A LIS resource whose results have been imported. A DiagnosticReport is recorded as DiagnosticReport/id before its
+ * results are saved, and a Task as Task/id/_history/versionId once all its DiagnosticReports were imported. The
+ * reference is unique, so two polls can't import the same results.
+ */
+@Entity
+@Table(name = "lab_result_import")
+public class LabResultImport extends BaseOpenmrsData {
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Column(name = "lis_reference", nullable = false, unique = true)
+    private String lisReference;
+
+    @Column(name = "task_uuid", length = 38)
+    private String taskUuid;
+
+    public LabResultImport() {
+    }
+
+    public LabResultImport(String lisReference, String taskUuid) {
+        this.lisReference = lisReference;
+        this.taskUuid = taskUuid;
+    }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the versioned reference of the Task, or the reference of the DiagnosticReport, on the LIS
+     */
+    public String getLisReference() {
+        return lisReference;
+    }
+
+    public void setLisReference(String lisReference) {
+        this.lisReference = lisReference;
+    }
+
+    /**
+     * @return the uuid of the OpenMRS Task the results were imported for
+     */
+    public String getTaskUuid() {
+        return taskUuid;
+    }
+
+    public void setTaskUuid(String taskUuid) {
+        this.taskUuid = taskUuid;
+    }
+}
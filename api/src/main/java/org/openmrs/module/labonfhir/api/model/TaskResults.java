@@ -0,0 +1,96 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Task;
+
+/**
+ * The new results of a LIS Task for its OpenMRS Task, and the LIS resources they are recorded under in the import
+ * ledger, saved together by {@link org.openmrs.module.labonfhir.api.service.LabOnFhirService#saveTaskResults}
+ */
+public class TaskResults {
+
+	private final String taskUuid;
+
+	private final Task.TaskStatus status;
+
+	private final List<String> lisReferences = new ArrayList<>();
+
+	private final List<Report> reports = new ArrayList<>();
+
+	public TaskResults(String taskUuid, Task.TaskStatus status) {
+		this.taskUuid = taskUuid;
+		this.status = status;
+	}
+
+	/**
+	 * @return the uuid of the OpenMRS Task
+	 */
+	public String getTaskUuid() {
+		return taskUuid;
+	}
+
+	/**
+	 * @return the status of the LIS Task, which the OpenMRS Task takes on if it gets new results
+	 */
+	public Task.TaskStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the references to record in the import ledger, e.g. DiagnosticReport/id or Task/id/_history/versionId
+	 */
+	public List<String> getLisReferences() {
+		return Collections.unmodifiableList(lisReferences);
+	}
+
+	public List<Report> getReports() {
+		return Collections.unmodifiableList(reports);
+	}
+
+	/**
+	 * Records a LIS resource in the import ledger without saving anything for it
+	 */
+	public void addLisReference(String lisReference) {
+		lisReferences.add(lisReference);
+	}
+
+	/**
+	 * Adds a DiagnosticReport to save with its results, recorded in the import ledger under the given reference
+	 */
+	public void addReport(String lisReference, DiagnosticReport diagnosticReport, List<Observation> observations) {
+		lisReferences.add(lisReference);
+		reports.add(new Report(diagnosticReport, observations));
+	}
+
+	public boolean isEmpty() {
+		return lisReferences.isEmpty();
+	}
+
+	/**
+	 * A DiagnosticReport of the LIS and its result Observations
+	 */
+	public static class Report {
+
+		private final DiagnosticReport diagnosticReport;
+
+		private final List<Observation> observations;
+
+		private Report(DiagnosticReport diagnosticReport, List<Observation> observations) {
+			this.diagnosticReport = diagnosticReport;
+			this.observations = Collections.unmodifiableList(new ArrayList<>(observations));
+		}
+
+		public DiagnosticReport getDiagnosticReport() {
+			return diagnosticReport;
+		}
+
+		public List<Observation> getObservations() {
+			return observations;
+		}
+	}
+}
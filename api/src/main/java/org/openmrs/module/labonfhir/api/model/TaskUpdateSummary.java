@@ -0,0 +1,55 @@
+package org.openmrs.module.labonfhir.api.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What is needed to decide whether an OpenMRS lab Task has to be updated with the results of its LIS Task, read with
+ * projection queries instead of translating the whole {@link org.openmrs.module.fhir2.model.FhirTask}
+ */
+public class TaskUpdateSummary {
+
+	private final String taskUuid;
+
+	private final String encounterUuid;
+
+	private final List<String> basedOnReferences;
+
+	private final Set<String> outputLoincCodes;
+
+	public TaskUpdateSummary(String taskUuid, String encounterUuid, List<String> basedOnReferences,
+	    Set<String> outputLoincCodes) {
+		this.taskUuid = taskUuid;
+		this.encounterUuid = encounterUuid;
+		this.basedOnReferences = Collections.unmodifiableList(new ArrayList<>(basedOnReferences));
+		this.outputLoincCodes = Collections.unmodifiableSet(new HashSet<>(outputLoincCodes));
+	}
+
+	public String getTaskUuid() {
+		return taskUuid;
+	}
+
+	/**
+	 * @return the uuid of the Task's encounter, or null if it has none
+	 */
+	public String getEncounterUuid() {
+		return encounterUuid;
+	}
+
+	/**
+	 * @return the Task's basedOn references, e.g. ServiceRequest/uuid
+	 */
+	public List<String> getBasedOnReferences() {
+		return basedOnReferences;
+	}
+
+	/**
+	 * @return the LOINC codes of the DiagnosticReports already saved as outputs of the Task
+	 */
+	public Set<String> getOutputLoincCodes() {
+		return outputLoincCodes;
+	}
+}
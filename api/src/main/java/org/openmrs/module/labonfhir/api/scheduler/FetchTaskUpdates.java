@@ -6,47 +6,73 @@ import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.checkerframework.common.returnsreceiver.qual.This;
 import org.hibernate.SessionFactory;
-import org.hibernate.annotations.OnDelete;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
-import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Task;
-import org.hl7.fhir.r4.model.Type;
 import org.hl7.fhir.r4.model.codesystems.TaskStatus;
-import org.openmrs.api.ConceptService;
+import org.openmrs.api.APIException;
 import org.openmrs.module.fhir2.FhirConstants;
-import org.openmrs.module.fhir2.api.FhirDiagnosticReportService;
 import org.openmrs.module.fhir2.api.FhirObservationService;
 import org.openmrs.module.fhir2.api.FhirTaskService;
 import org.openmrs.module.fhir2.api.dao.FhirObservationDao;
 import org.openmrs.module.fhir2.api.translators.ObservationReferenceTranslator;
 import org.openmrs.module.fhir2.api.translators.ObservationValueTranslator;
 import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.LabOrderManager;
+import org.openmrs.module.labonfhir.api.LabWorkerPool;
+import org.openmrs.module.labonfhir.api.model.LabPollCheckpoint;
 import org.openmrs.module.labonfhir.api.model.TaskRequest;
+import org.openmrs.module.labonfhir.api.model.TaskResults;
+import org.openmrs.module.labonfhir.api.model.TaskUpdateSummary;
 import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 import org.openmrs.scheduler.tasks.AbstractTask;
 import org.springframework.beans.BeansException;
@@ -54,11 +80,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 
 @Component
 @Setter(AccessLevel.PACKAGE)
-public class FetchTaskUpdates extends AbstractTask implements ApplicationContextAware {
+public class FetchTaskUpdates extends AbstractTask implements ApplicationContextAware, TaskNotificationImporter.Handler {
 
 	private static Log log = LogFactory.getLog(FetchTaskUpdates.class);
 
@@ -68,6 +95,31 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 
 	private static String DISA_LS_SYSTEM = "http://health.gov.ls/laboratory-services/";
 
+	/**
+	 * name of the checkpoint of the poll for completed Tasks
+	 */
+	static final String TASK_UPDATES_CHECKPOINT = "taskUpdates";
+
+	/**
+	 * name of the checkpoint of the backfill window, whose slices have checkpoints named after it and their start
+	 */
+	static final String BACKFILL_CHECKPOINT = "backfill";
+
+	/**
+	 * how far back the backfill goes
+	 */
+	static final int BACKFILL_YEARS = 5;
+
+	/**
+	 * put on the prefetch queue after the last page
+	 */
+	private static final Bundle END_OF_PAGES = new Bundle();
+
+	/**
+	 * held by a poll or an import of notified Tasks, on whichever instance the scheduler or the importer runs it
+	 */
+	private static final Object POLL_LOCK = new Object();
+
 	@Autowired
 	private LabOnFhirConfig config;
 
@@ -78,9 +130,6 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 	@Autowired
 	private FhirTaskService taskService;
 
-	@Autowired
-	private FhirDiagnosticReportService diagnosticReportService;
-
 	@Autowired
 	FhirObservationDao observationDao;
 
@@ -100,32 +149,29 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 	@Autowired
     private LabOnFhirService labOnFhirService;
 
-	/* This is the original code */
-	// @Override
-	// public void execute() {
-
-	// 	try {
-	// 		applicationContext.getAutowireCapableBeanFactory().autowireBean(this);
-	// 	} catch (Exception e) {
-	// 		// return;
-	// 	}
-
-	// 	if (!config.isLisEnabled()) {
-	// 		return;
-	// 	}
-
-	// 	try {
-	// 		// Get List of Tasks that belong to this instance and update them
-	// 		updateTasksInBundle(client.search().forResource(Task.class)
-	// 				.where(Task.IDENTIFIER.hasSystemWithAnyCode(FhirConstants.OPENMRS_FHIR_EXT_TASK_IDENTIFIER))
-	// 				.where(Task.STATUS.exactly().code(TaskStatus.COMPLETED.toCode())).returnBundle(Bundle.class)
-	// 				.execute());
-	// 	} catch (Exception e) {
-	// 		log.error("ERROR executing FetchTaskUpdates : " + e.toString() + getStackTrace(e));
-	// 	}
-
-	// 	super.startExecuting();
-	// }
+	@Autowired
+	private LabOrderManager labOrderManager;
+
+	@Autowired
+	private TaskNotificationImporter taskNotificationImporter;
+
+	private long lastPollDurationMillis;
+
+	private long pageWaitNanos;
+
+	/**
+	 * how long a page waits for the result workers before it withdraws the work they haven't started and fails,
+	 * leaving its checkpoint where it was
+	 */
+	private long pageSaveTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Hands the importer this bean, rather than the importer depending on it
+	 */
+	@PostConstruct
+	public void registerWithImporter() {
+		taskNotificationImporter.setHandler(this);
+	}
 
 	@Override
 	public void execute() {
@@ -140,57 +186,13 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 			return;
 		}
 
+		if (taskNotificationImporter != null && !taskNotificationImporter.isPollDue()) {
+			// the LIS notifies of completed Tasks, so polling is only a safety net
+			return;
+		}
+
 		try {
-			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-			//dateFormat.setTimeZone(TimeZone.getTimeZone("UTC")); //our hapi fhir uses this timezone
-			Date newDate = new Date();
-			Calendar calendar = Calendar.getInstance();
-			calendar.setTime(newDate);
-			calendar.add(Calendar.YEAR, -5);
-			Date fiveYearsAgo = calendar.getTime();
-
-			// TaskRequest lastRequest = labOnFhirService.getLastTaskRequest();
-			// String lastRequestDate = dateFormat.format(fiveYearsAgo);
-			// if (lastRequest != null) {
-			// 	lastRequestDate = dateFormat.format(lastRequest.getRequestDate());
-			// }
-
-			// String currentTime = dateFormat.format(newDate);
-
-			// Translate dates (lasstreq date & date now) to UTC since HAPI is running on UTC TZ
-			TaskRequest lastRequest = labOnFhirService.getLastTaskRequest();
-			String lastRequestDate = dateFormat.format(convertDateToUTC(fiveYearsAgo, TimeZone.getDefault()));
-			if (lastRequest != null) {
-				lastRequestDate = dateFormat.format(convertDateToUTC(lastRequest.getRequestDate(), TimeZone.getDefault()));
-			}
-			Date newDateUTC = convertDateToUTC(newDate, TimeZone.getDefault());
-			String currentTime = dateFormat.format(newDateUTC);
-
-			DateRangeParam lastUpdated = new DateRangeParam().setLowerBound(lastRequestDate).setUpperBound(currentTime);
-			
-			// Get List of Tasks that belong to this instance and update them
-			//The request below will fetch the first page
-			Bundle taskBundle = client.search().forResource(Task.class)
-			        .where(Task.IDENTIFIER.hasSystemWithAnyCode(FhirConstants.OPENMRS_FHIR_EXT_TASK_IDENTIFIER))
-			        .where(Task.STATUS.exactly().code(TaskStatus.COMPLETED.toCode())).lastUpdated(lastUpdated)
-			        .returnBundle(Bundle.class).execute();
-
-			//log.warn("Just ran query with lastupdated range - Lower bound: "+lastUpdated.getLowerBoundAsInstant()+ " and Upper bound: "+lastUpdated.getUpperBoundAsInstant());		
-			
-			List<Bundle> taskBundles = new ArrayList<>();
-			taskBundles.add(taskBundle);
-			//Support FHIR Server Pagination -- fetch succeeding pages
-			while (taskBundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-				// Load the next page
-				taskBundle = client.loadPage().next(taskBundle).execute();
-				taskBundles.add(taskBundle);
-			}		
-			updateTasksInBundle(taskBundles);
-			
-			TaskRequest request = new TaskRequest();
-			request.setRequestDate(newDate);
-			labOnFhirService.saveOrUpdateTaskRequest(request);
-			
+			poll();
 		} catch (Exception e) {
 			log.error("ERROR executing FetchTaskUpdates : " + e.toString() + getStackTrace(e));
 		}
@@ -198,6 +200,55 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 		super.startExecuting();
 	}
 
+	/**
+	 * Polls the LIS for completed Tasks from the checkpoint, backfilling first on an installation that never got
+	 * results. Polls, and imports of notified Tasks, run one at a time, so an OpenMRS Task is never updated by two of
+	 * them at once.
+	 *
+	 * @return the number of Tasks processed since the checkpoint
+	 */
+	@Override
+	public int poll() throws InterruptedException {
+		synchronized (POLL_LOCK) {
+			if (taskNotificationImporter != null) {
+				taskNotificationImporter.pollStarted();
+			}
+			int taskCount = 0;
+			SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+			//dateFormat.setTimeZone(TimeZone.getTimeZone("UTC")); //our hapi fhir uses this timezone
+			Date newDate = new Date();
+
+			LabPollCheckpoint checkpoint = labOnFhirService.getPollCheckpoint(TASK_UPDATES_CHECKPOINT);
+			LabPollCheckpoint backfillCheckpoint = checkpoint == null
+			        ? labOnFhirService.getPollCheckpoint(BACKFILL_CHECKPOINT) : null;
+			TaskRequest lastRequest = checkpoint == null && backfillCheckpoint == null
+			        ? labOnFhirService.getLastTaskRequest() : null;
+			if (checkpoint == null && (backfillCheckpoint != null || lastRequest == null)) {
+				// nothing was fetched from the LIS yet, so the whole window is backfilled before polling goes on
+				if (backfillCheckpoint == null) {
+					backfillCheckpoint = new LabPollCheckpoint(BACKFILL_CHECKPOINT);
+					backfillCheckpoint.setLastUpdated(toInstant(newDate));
+					labOnFhirService.savePollCheckpoint(backfillCheckpoint);
+				}
+				checkpoint = backfill(backfillCheckpoint);
+			} else if (checkpoint == null) {
+				// the first poll since there are checkpoints starts where the last one by date stopped
+				// Translate dates (lasstreq date) to UTC since HAPI is running on UTC TZ
+				String lastRequestDate = dateFormat.format(convertDateToUTC(lastRequest.getRequestDate(), TimeZone.getDefault()));
+				checkpoint = new LabPollCheckpoint(TASK_UPDATES_CHECKPOINT);
+				checkpoint.setLastUpdated(lastRequestDate);
+				// saved at once, as the TaskRequests aren't read again
+				labOnFhirService.savePollCheckpoint(checkpoint);
+			}
+
+			// Get List of Tasks that belong to this instance and update them
+			if (checkpoint != null) {
+				taskCount = fetchTaskUpdates(checkpoint);
+			}
+			return taskCount;
+		}
+	}
+
 	@Override
 	public void shutdown() {
 		log.debug("shutting down FetchTaskUpdates Task");
@@ -205,70 +256,795 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 		this.stopExecuting();
 	}
 
-	private void updateTasksInBundle(List<Bundle> taskBundles) {
-		for (Bundle bundle : taskBundles) {
-			for (Iterator tasks = bundle.getEntry().iterator(); tasks.hasNext();) {
-				String openmrsTaskUuid = null;
-				
+	/**
+	 * Fetches the completed Tasks updated since the checkpoint and updates them, one page at a time. Pages are searched
+	 * in _lastUpdated order from the last Task processed, rather than by offset, so every page costs the LIS the same,
+	 * and the checkpoint is saved after each page, so a poll that stops resumes at the page it stopped on. Only the pages
+	 * being processed or prefetched are referenced, and the session is cleared after each page, so memory use depends on
+	 * the page size and {@link LabOnFhirConfig#getTaskUpdatePrefetchDepth()} rather than on the number of Tasks.
+	 *
+	 * @return the number of Tasks processed
+	 */
+	int fetchTaskUpdates(LabPollCheckpoint checkpoint) throws InterruptedException {
+		long start = System.nanoTime();
+		pageWaitNanos = 0;
+
+		PollPosition position = new PollPosition(checkpoint);
+		Bundle taskBundle = fetchNextPage(position);
+
+		int prefetchDepth = config.getTaskUpdatePrefetchDepth();
+		int taskCount = 0;
+		if (taskBundle != null) {
+			taskCount = prefetchDepth > 0 ? processPagesWithPrefetch(taskBundle, position, prefetchDepth, checkpoint)
+			        : processPages(taskBundle, position, checkpoint);
+		}
+
+		lastPollDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		log.info("Processed " + taskCount + " Task updates from the LIS in " + lastPollDurationMillis + " ms, "
+		        + TimeUnit.NANOSECONDS.toMillis(pageWaitNanos) + " ms of which waiting for pages");
+		return taskCount;
+	}
+
+	/**
+	 * @return how long the last poll took, from the first request to the last Task saved, in milliseconds
+	 */
+	public long getLastPollDurationMillis() {
+		return lastPollDurationMillis;
+	}
+
+	/**
+	 * Fetches the LIS Tasks with the given ids, in searches of up to {@link LabOnFhirConfig#getTaskUpdatePageSize()}
+	 * Tasks, and updates them like the Tasks of a polled page. The ids come from Subscription notifications, so the
+	 * search only returns the ones the LIS holds as completed Tasks of this instance. The checkpoint stays where it is;
+	 * the next poll skips these Tasks through the import ledger.
+	 *
+	 * @return the number of Tasks the LIS returned
+	 */
+	@Override
+	public int importTasks(Collection<String> taskIds) {
+		int pageSize = Math.max(1, config.getTaskUpdatePageSize());
+		List<String> ids = new ArrayList<>(taskIds);
+		int taskCount = 0;
+		synchronized (POLL_LOCK) {
+			for (int from = 0; from < ids.size(); from += pageSize) {
+				List<String> chunk = ids.subList(from, Math.min(from + pageSize, ids.size()));
+				Bundle taskBundle = client.search().forResource(Task.class)
+				        .where(new TokenClientParam("_id").exactly().codes(chunk))
+				        .where(Task.IDENTIFIER.hasSystemWithAnyCode(FhirConstants.OPENMRS_FHIR_EXT_TASK_IDENTIFIER))
+				        .where(Task.STATUS.exactly().code(TaskStatus.COMPLETED.toCode())).count(chunk.size())
+				        .returnBundle(Bundle.class).execute();
+				if (taskBundle.hasEntry()) {
+					updateTasksInBundle(taskBundle);
+					taskCount += taskBundle.getEntry().size();
+				}
+				sessionFactory.getCurrentSession().clear();
+			}
+		}
+		log.debug("Imported " + taskCount + " of " + ids.size() + " Tasks the LIS notified of");
+		return taskCount;
+	}
+
+	/**
+	 * Searches the completed Tasks updated at or after the position, in _lastUpdated then _id order, and drops the ones
+	 * processed already. Tasks of a single lastUpdated may fill whole pages; as the search from the position would
+	 * then return the same page again, the search's next link is followed instead.
+	 *
+	 * @return the page of Tasks after the position, or null if there are none
+	 */
+	private Bundle fetchNextPage(PollPosition position) {
+		Bundle page;
+		if (position.continuation != null) {
+			page = client.loadPage().next(position.continuation).execute();
+		} else {
+			IQuery<Bundle> search = client.search().forResource(Task.class)
+			        .where(Task.IDENTIFIER.hasSystemWithAnyCode(FhirConstants.OPENMRS_FHIR_EXT_TASK_IDENTIFIER))
+			        .where(Task.STATUS.exactly().code(TaskStatus.COMPLETED.toCode())).sort().ascending("_lastUpdated")
+			        .sort().ascending("_id").count(Math.max(1, config.getTaskUpdatePageSize()))
+			        .returnBundle(Bundle.class);
+			if (position.lastUpdatedParam != null || position.endParam != null) {
+				DateRangeParam lastUpdated = new DateRangeParam();
+				if (position.lastUpdatedParam != null) {
+					lastUpdated.setLowerBound(
+					    new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, position.lastUpdatedParam));
+				}
+				if (position.endParam != null) {
+					lastUpdated.setUpperBound(new DateParam(ParamPrefixEnum.LESSTHAN, position.endParam));
+				}
+				search = search.lastUpdated(lastUpdated);
+			}
+			page = search.execute();
+		}
+
+		while (true) {
+			List<Bundle.BundleEntryComponent> entries = page.getEntry();
+			boolean singleLastUpdated = entries.isEmpty() || Objects.equals(lastUpdated(entries.get(0)),
+			    lastUpdated(entries.get(entries.size() - 1)));
+			position.continuation = singleLastUpdated && page.getLink(IBaseBundle.LINK_NEXT) != null ? page : null;
+
+			List<Bundle.BundleEntryComponent> newEntries = new ArrayList<>();
+			for (Bundle.BundleEntryComponent entry : entries) {
+				if (entry.getResource() instanceof Task && position.isNew((Task) entry.getResource())) {
+					position.advanceTo((Task) entry.getResource());
+					newEntries.add(entry);
+				}
+			}
+			if (!newEntries.isEmpty()) {
+				page.setEntry(newEntries);
+				return page;
+			}
+			if (position.continuation == null) {
+				return null;
+			}
+			page = client.loadPage().next(page).execute();
+		}
+	}
+
+	private static Date lastUpdated(Bundle.BundleEntryComponent entry) {
+		return entry.getResource() == null ? null : entry.getResource().getMeta().getLastUpdated();
+	}
+
+	private int processPages(Bundle taskBundle, PollPosition position, LabPollCheckpoint checkpoint) {
+		int taskCount = 0;
+		while (taskBundle != null) {
+			taskCount += processPage(taskBundle, checkpoint);
+
+			// fetch the succeeding page, letting go of this one
+			long waitStart = System.nanoTime();
+			taskBundle = fetchNextPage(position);
+			pageWaitNanos += System.nanoTime() - waitStart;
+		}
+		return taskCount;
+	}
+
+	/**
+	 * Processes the pages while a separate thread fetches up to prefetchDepth pages ahead, so the time spent waiting for
+	 * the LIS overlaps with the time spent saving results
+	 */
+	private int processPagesWithPrefetch(Bundle firstPage, PollPosition position, int prefetchDepth,
+	        LabPollCheckpoint checkpoint) throws InterruptedException {
+		BlockingQueue<Bundle> pages = new ArrayBlockingQueue<>(prefetchDepth);
+		AtomicReference<RuntimeException> prefetchFailure = new AtomicReference<>();
+
+		// the prefetcher only talks to the LIS, so it doesn't need an OpenMRS session
+		Thread prefetcher = new Thread(() -> {
+			try {
+				Bundle page = fetchNextPage(position);
+				while (page != null) {
+					pages.put(page);
+					page = fetchNextPage(position);
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (RuntimeException e) {
+				prefetchFailure.set(e);
+			}
+
+			try {
+				pages.put(END_OF_PAGES);
+			}
+			catch (InterruptedException e) {
+				// the consumer stopped already
+			}
+		}, "Lab on FHIR Task update prefetch");
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+
+		try {
+			int taskCount = processPage(firstPage, checkpoint);
+			while (true) {
+				long waitStart = System.nanoTime();
+				Bundle page = pages.take();
+				pageWaitNanos += System.nanoTime() - waitStart;
+				if (page == END_OF_PAGES) {
+					break;
+				}
+				taskCount += processPage(page, checkpoint);
+			}
+
+			if (prefetchFailure.get() != null) {
+				throw prefetchFailure.get();
+			}
+			return taskCount;
+		}
+		finally {
+			prefetcher.interrupt();
+		}
+	}
+
+	/**
+	 * Updates the Tasks of a page, then moves the checkpoint to the last of them
+	 */
+	private int processPage(Bundle taskBundle, LabPollCheckpoint checkpoint) {
+		updateTasksInBundle(taskBundle);
+
+		Resource lastTask = taskBundle.getEntry().get(taskBundle.getEntry().size() - 1).getResource();
+		if (lastTask.getMeta().hasLastUpdated()) {
+			checkpoint.setLastUpdated(lastTask.getMeta().getLastUpdatedElement().getValueAsString());
+		}
+		checkpoint.setLastResourceId(lastTask.getIdElement().getIdPart());
+		labOnFhirService.savePollCheckpoint(checkpoint);
+
+		sessionFactory.getCurrentSession().clear();
+		return taskBundle.getEntry().size();
+	}
+
+	/**
+	 * Fetches the completed Tasks of the {@value #BACKFILL_YEARS} years before the end of the backfill window, for an
+	 * installation that never got results from the LIS. The window is split into _lastUpdated slices of
+	 * {@link LabOnFhirConfig#getBackfillSliceDays()} days, and {@link LabOnFhirConfig#getBackfillParallelism()} of them
+	 * are fetched at once, each from a checkpoint of its own. The pages are saved one at a time on this thread, which has
+	 * the OpenMRS session. A slice that is done stays done, so a backfill that stops goes on with the slices left on the
+	 * next poll.
+	 *
+	 * @return the checkpoint polling goes on from once every slice is done, otherwise null
+	 */
+	LabPollCheckpoint backfill(LabPollCheckpoint backfillCheckpoint) throws InterruptedException {
+		Date windowEnd = new InstantType(backfillCheckpoint.getLastUpdated()).getValue();
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTime(windowEnd);
+		calendar.add(Calendar.YEAR, -BACKFILL_YEARS);
+		Date windowStart = calendar.getTime();
+
+		int sliceDays = Math.max(1, config.getBackfillSliceDays());
+		List<BackfillSlice> slices = new ArrayList<>();
+		for (Date sliceStart = windowStart; sliceStart.before(windowEnd);) {
+			calendar.setTime(sliceStart);
+			calendar.add(Calendar.DAY_OF_MONTH, sliceDays);
+			Date sliceEnd = calendar.getTime().before(windowEnd) ? calendar.getTime() : windowEnd;
+			slices.add(new BackfillSlice(sliceStart, sliceEnd, getSliceCheckpoint(sliceStart)));
+			sliceStart = sliceEnd;
+		}
+
+		List<BackfillSlice> slicesLeft = new ArrayList<>();
+		for (BackfillSlice slice : slices) {
+			if (!Boolean.TRUE.equals(slice.checkpoint.getCompleted())) {
+				slicesLeft.add(slice);
+			}
+		}
+		log.info("Backfilling results from the LIS between " + toInstant(windowStart) + " and "
+		        + toInstant(windowEnd) + ", " + slicesLeft.size() + " of " + slices.size() + " slices left");
+
+		int parallelism = Math.max(1, config.getBackfillParallelism());
+		BlockingQueue<SlicePage> pages = new ArrayBlockingQueue<>(parallelism);
+		ExecutorService fetchers = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "Lab on FHIR backfill");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		BackfillProgress progress = new BackfillProgress(slices, windowEnd.getTime() - windowStart.getTime());
+		boolean allDone = true;
+		try {
+			// the fetchers only talk to the LIS, so they don't need an OpenMRS session
+			for (BackfillSlice slice : slicesLeft) {
+				fetchers.execute(() -> fetchSlice(slice, pages));
+			}
+
+			int slicesFetching = slicesLeft.size();
+			while (slicesFetching > 0) {
+				SlicePage slicePage = pages.take();
+				BackfillSlice slice = slicePage.slice;
+				if (slicePage.page != null) {
+					progress.taskCount += processPage(slicePage.page, slice.checkpoint);
+					Date reached = lastUpdated(slicePage.page.getEntry().get(slicePage.page.getEntry().size() - 1));
+					if (reached != null) {
+						slice.reachedMillis = reached.getTime();
+					}
+				} else {
+					slicesFetching--;
+					if (slicePage.failure == null) {
+						slice.checkpoint.setCompleted(true);
+						labOnFhirService.savePollCheckpoint(slice.checkpoint);
+						slice.reachedMillis = slice.end.getTime();
+					} else {
+						allDone = false;
+						log.error("Could not backfill the results between " + toInstant(slice.start) + " and "
+						        + toInstant(slice.end) + ": " + slicePage.failure + getStackTrace(slicePage.failure));
+					}
+				}
+				progress.log();
+			}
+		}
+		finally {
+			fetchers.shutdownNow();
+		}
+
+		if (!allDone) {
+			return null;
+		}
+
+		// hand over to polling from the end of the window
+		LabPollCheckpoint checkpoint = new LabPollCheckpoint(TASK_UPDATES_CHECKPOINT);
+		checkpoint.setLastUpdated(backfillCheckpoint.getLastUpdated());
+		labOnFhirService.savePollCheckpoint(checkpoint);
+		backfillCheckpoint.setCompleted(true);
+		labOnFhirService.savePollCheckpoint(backfillCheckpoint);
+		log.info("Backfilled " + progress.taskCount + " Tasks from the LIS");
+		return checkpoint;
+	}
+
+	private LabPollCheckpoint getSliceCheckpoint(Date sliceStart) {
+		SimpleDateFormat nameFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+		nameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String name = BACKFILL_CHECKPOINT + "-" + nameFormat.format(sliceStart);
+
+		LabPollCheckpoint checkpoint = labOnFhirService.getPollCheckpoint(name);
+		if (checkpoint == null) {
+			checkpoint = new LabPollCheckpoint(name);
+			checkpoint.setLastUpdated(toInstant(sliceStart));
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Fetches the pages of a slice onto the queue, followed by a page without a bundle once the slice is done or failed
+	 */
+	private void fetchSlice(BackfillSlice slice, BlockingQueue<SlicePage> pages) {
+		RuntimeException failure = null;
+		try {
+			PollPosition position = new PollPosition(slice.checkpoint);
+			position.endParam = toInstant(slice.end);
+			Bundle page = fetchNextPage(position);
+			while (page != null) {
+				pages.put(new SlicePage(slice, page, null));
+				page = fetchNextPage(position);
+			}
+		}
+		catch (InterruptedException e) {
+			return;
+		}
+		catch (RuntimeException e) {
+			failure = e;
+		}
+
+		try {
+			pages.put(new SlicePage(slice, null, failure));
+		}
+		catch (InterruptedException e) {
+			// the backfill stopped already
+		}
+	}
+
+	private static String toInstant(Date date) {
+		InstantType instant = new InstantType(date);
+		instant.setTimeZoneZulu(true);
+		return instant.getValueAsString();
+	}
+
+	private static class BackfillSlice {
+
+		private final Date start;
+
+		private final Date end;
+
+		private final LabPollCheckpoint checkpoint;
+
+		/**
+		 * the lastUpdated of the last Task saved, or the start of the slice
+		 */
+		private long reachedMillis;
+
+		private BackfillSlice(Date start, Date end, LabPollCheckpoint checkpoint) {
+			this.start = start;
+			this.end = end;
+			this.checkpoint = checkpoint;
+			if (Boolean.TRUE.equals(checkpoint.getCompleted())) {
+				reachedMillis = end.getTime();
+			} else if (checkpoint.getLastResourceId() != null) {
+				reachedMillis = new InstantType(checkpoint.getLastUpdated()).getValue().getTime();
+			} else {
+				reachedMillis = start.getTime();
+			}
+		}
+	}
+
+	private static class SlicePage {
+
+		private final BackfillSlice slice;
+
+		private final Bundle page;
+
+		private final RuntimeException failure;
+
+		private SlicePage(BackfillSlice slice, Bundle page, RuntimeException failure) {
+			this.slice = slice;
+			this.page = page;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * How much of the backfill window is done, by the lastUpdated each slice got to, and when the rest will be at the
+	 * pace of this run
+	 */
+	private static class BackfillProgress {
+
+		private final List<BackfillSlice> slices;
+
+		private final long windowMillis;
+
+		private final double doneAtStart;
+
+		private final long startNanos = System.nanoTime();
+
+		private int taskCount;
+
+		private int lastPercentLogged;
+
+		private BackfillProgress(List<BackfillSlice> slices, long windowMillis) {
+			this.slices = slices;
+			this.windowMillis = windowMillis;
+			this.doneAtStart = getDone();
+			this.lastPercentLogged = (int) (doneAtStart * 100);
+		}
+
+		private double getDone() {
+			long doneMillis = 0;
+			for (BackfillSlice slice : slices) {
+				doneMillis += Math.min(slice.reachedMillis, slice.end.getTime()) - slice.start.getTime();
+			}
+			return windowMillis > 0 ? (double) doneMillis / windowMillis : 1;
+		}
+
+		/**
+		 * Logs the progress each time another percent of the window is done
+		 */
+		private void log() {
+			double done = getDone();
+			int percent = (int) (done * 100);
+			if (percent == lastPercentLogged) {
+				return;
+			}
+			lastPercentLogged = percent;
+
+			int slicesDone = 0;
+			for (BackfillSlice slice : slices) {
+				if (Boolean.TRUE.equals(slice.checkpoint.getCompleted())) {
+					slicesDone++;
+				}
+			}
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+			String eta = done > doneAtStart
+			        ? ", about " + TimeUnit.MILLISECONDS.toMinutes(
+			            (long) (elapsedMillis * (1 - done) / (done - doneAtStart))) + " minutes left"
+			        : "";
+			FetchTaskUpdates.log.info("Backfill of results from the LIS " + percent + "% done, " + slicesDone + " of "
+			        + slices.size() + " slices, " + taskCount + " Tasks saved" + eta);
+		}
+	}
+
+	/**
+	 * Where a poll is in the _lastUpdated order of the Tasks: the lastUpdated of the last Task processed, and the ids of
+	 * the Tasks processed with that lastUpdated
+	 */
+	private static class PollPosition {
+
+		private Date lastUpdated;
+
+		private String lastUpdatedParam;
+
+		/**
+		 * where the poll stops, if it has an end like a slice of the backfill
+		 */
+		private String endParam;
+
+		private final Set<String> ids = new HashSet<>();
+
+		/**
+		 * the page whose next link the next page is fetched with, if the position can't move on by searching
+		 */
+		private Bundle continuation;
+
+		private PollPosition(LabPollCheckpoint checkpoint) {
+			lastUpdatedParam = checkpoint.getLastUpdated();
+			if (checkpoint.getLastResourceId() != null) {
+				lastUpdated = new InstantType(checkpoint.getLastUpdated()).getValue();
+				ids.add(checkpoint.getLastResourceId());
+			}
+		}
+
+		/**
+		 * @return true if the Task comes after the position, i.e. it hasn't been processed yet
+		 */
+		private boolean isNew(Task task) {
+			Date taskLastUpdated = task.getMeta().getLastUpdated();
+			if (lastUpdated != null && taskLastUpdated != null && !taskLastUpdated.equals(lastUpdated)) {
+				return taskLastUpdated.after(lastUpdated);
+			}
+			return !ids.contains(task.getIdElement().getIdPart());
+		}
+
+		private void advanceTo(Task task) {
+			Date taskLastUpdated = task.getMeta().getLastUpdated();
+			if (taskLastUpdated != null && (lastUpdated == null || taskLastUpdated.after(lastUpdated))) {
+				lastUpdated = taskLastUpdated;
+				lastUpdatedParam = task.getMeta().getLastUpdatedElement().getValueAsString();
+				ids.clear();
+			}
+			ids.add(task.getIdElement().getIdPart());
+		}
+	}
+
+	void updateTasksInBundle(Bundle bundle) {
+		List<Task> openelisTasks = new ArrayList<>();
+		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Task) {
+				openelisTasks.add((Task) entry.getResource());
+			}
+		}
+
+		// Task versions and DiagnosticReports in the ledger are skipped before anything is fetched or loaded for them
+		Set<String> lisReferences = new LinkedHashSet<>();
+		for (Task openelisTask : openelisTasks) {
+			lisReferences.add(getVersionedReference(openelisTask));
+			for (String diagnosticReportId : getDiagnosticReportIds(openelisTask)) {
+				lisReferences.add(FhirConstants.DIAGNOSTIC_REPORT + "/" + diagnosticReportId);
+			}
+		}
+		lisReferences.remove(null);
+		Set<String> importedReferences = lisReferences.isEmpty() ? new HashSet<>()
+		        : new HashSet<>(labOnFhirService.getImportedLisReferences(lisReferences));
+		openelisTasks.removeIf(openelisTask -> importedReferences.contains(getVersionedReference(openelisTask)));
+
+		// Find original openmrs tasks using Identifier, all Tasks of the page at once
+		Set<String> openmrsTaskUuids = new LinkedHashSet<>();
+		for (Task openelisTask : openelisTasks) {
+			openmrsTaskUuids.add(openelisTask.getIdentifierFirstRep().getValue());
+		}
+		openmrsTaskUuids.remove(null);
+		Map<String, TaskUpdateSummary> openmrsTasks = new HashMap<>();
+		for (TaskUpdateSummary summary : labOnFhirService.getTaskUpdateSummaries(openmrsTaskUuids, LOINC_SYSTEM)) {
+			openmrsTasks.put(summary.getTaskUuid(), summary);
+		}
+
+		// only the reports of Tasks that are in OpenMRS and that haven't been imported yet are fetched
+		Set<String> diagnosticReportIds = new LinkedHashSet<>();
+		for (Task openelisTask : openelisTasks) {
+			if (openmrsTasks.containsKey(openelisTask.getIdentifierFirstRep().getValue())) {
+				for (String diagnosticReportId : getDiagnosticReportIds(openelisTask)) {
+					if (!importedReferences.contains(FhirConstants.DIAGNOSTIC_REPORT + "/" + diagnosticReportId)) {
+						diagnosticReportIds.add(diagnosticReportId);
+					}
+				}
+			}
+		}
+		Map<String, Bundle> diagnosticReports = fetchDiagnosticReports(diagnosticReportIds);
+
+		// the LIS Tasks of an OpenMRS Task are updated in page order by one worker, others at the same time
+		Map<String, List<Task>> tasksByOpenmrsTask = new LinkedHashMap<>();
+		for (Task openelisTask : openelisTasks) {
+			String openmrsTaskUuid = openelisTask.getIdentifierFirstRep().getValue();
+			if (openmrsTasks.containsKey(openmrsTaskUuid) && openelisTask.hasOutput()) {
+				tasksByOpenmrsTask.computeIfAbsent(openmrsTaskUuid, uuid -> new ArrayList<>()).add(openelisTask);
+			}
+		}
+
+		LabWorkerPool resultWorkers = labOrderManager == null ? null : labOrderManager.getResultWorkers();
+		if (resultWorkers == null || !resultWorkers.isRunning() || tasksByOpenmrsTask.size() <= 1) {
+			tasksByOpenmrsTask.forEach((openmrsTaskUuid, tasks) -> tasks.forEach(openelisTask -> updateTask(openelisTask,
+			    openmrsTasks.get(openmrsTaskUuid), diagnosticReports, importedReferences)));
+			return;
+		}
+
+		// the page is done, and its checkpoint can be saved, once every worker is
+		CountDownLatch updated = new CountDownLatch(tasksByOpenmrsTask.size());
+		AtomicBoolean pageFailed = new AtomicBoolean();
+		List<AtomicBoolean> notStarted = new ArrayList<>();
+		tasksByOpenmrsTask.forEach((openmrsTaskUuid, tasks) -> {
+			AtomicBoolean waiting = new AtomicBoolean(true);
+			notStarted.add(waiting);
+			Runnable work = () -> {
+				// work the failed page withdrew is counted down already
+				if (!waiting.compareAndSet(true, false)) {
+					return;
+				}
 				try {
-					// Read incoming LIS Task
-					Task openelisTask = (Task) ((Bundle.BundleEntryComponent) tasks.next()).getResource();
-					openmrsTaskUuid = openelisTask.getIdentifierFirstRep().getValue();
-					// Find original openmrs task using Identifier
-					Task openmrsTask = taskService.get(openmrsTaskUuid);
-					
-					// Only update if matching OpenMRS Task found
-					if (openmrsTask != null) {
-						// Handle status
-						openmrsTask.setStatus(openelisTask.getStatus());
-						
-						Boolean taskOutPutUpdated = false;
-						if (openelisTask.hasOutput()) {
-							// openmrsTask.setOutput(openelisTask.getOutput());
-							taskOutPutUpdated = updateOutput(openelisTask.getOutput(), openmrsTask);
-						}
-						if (taskOutPutUpdated) {
-							taskService.update(openmrsTaskUuid, openmrsTask);
+					for (Task openelisTask : tasks) {
+						if (pageFailed.get()) {
+							break;
 						}
+						updateTask(openelisTask, openmrsTasks.get(openmrsTaskUuid), diagnosticReports,
+						    importedReferences);
 					}
 				}
-				catch (Exception e) {
-					log.error("Could not save task " + openmrsTaskUuid + ":" + e.toString() + getStackTrace(e));
+				finally {
+					updated.countDown();
+				}
+			};
+			if (!resultWorkers.submit(work)) {
+				work.run();
+			}
+		});
+		boolean pageSaved = false;
+		InterruptedException interrupted = null;
+		try {
+			pageSaved = updated.await(pageSaveTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			interrupted = e;
+		}
+		if (!pageSaved) {
+			// the work no worker started is withdrawn and the LIS Tasks being saved are waited for, so no poll or
+			// import updates the same OpenMRS Task once the lock is released; the checkpoint stays before the page
+			long left = updated.getCount();
+			pageFailed.set(true);
+			for (AtomicBoolean waiting : notStarted) {
+				if (waiting.compareAndSet(true, false)) {
+					updated.countDown();
 				}
 			}
+			Uninterruptibles.awaitUninterruptibly(updated);
+			if (interrupted != null) {
+				Thread.currentThread().interrupt();
+				throw new APIException("Interrupted while the results of a page of LIS Tasks were being saved",
+				        interrupted);
+			}
+			throw new APIException("The results of a page of LIS Tasks were not saved within " + pageSaveTimeoutMillis
+			        + " ms, " + left + " OpenMRS Tasks are left");
 		}
-		
 	}
 
-	private Boolean updateOutput(List<Task.TaskOutputComponent> output, Task openmrsTask) {
-
-		Reference encounterReference = openmrsTask.getEncounter();
-		List<Reference> basedOn = openmrsTask.getBasedOn();
-		List<String> allExistingLoincCodes = new ArrayList<>();
-		//allExistingLoincCodes list contains loinc codes of DiagReports already in OpenMRS (i.e. processed)
-		Boolean taskOutPutUpdated = false;
-		// openmrsTask.getOutput().stream().map(ouput -> ouput.getType().getCoding());
-		openmrsTask.getOutput().forEach(out -> {
-			out.getType().getCoding().stream().filter(coding -> coding.hasSystem())
-					.filter(coding -> coding.getSystem().equals(LOINC_SYSTEM))
-					.forEach(coding -> {
-						allExistingLoincCodes.add(coding.getCode());
-					});
-		});
+	/**
+	 * Saves the new results of a LIS Task, and records them in the import ledger, in one transaction of the thread it
+	 * runs on
+	 */
+	private void updateTask(Task openelisTask, TaskUpdateSummary openmrsTask, Map<String, Bundle> diagnosticReports,
+	        Set<String> importedReferences) {
+		String openmrsTaskUuid = openmrsTask.getTaskUuid();
+		try {
+			TaskResults taskResults = new TaskResults(openmrsTaskUuid, openelisTask.getStatus());
+			addResults(taskResults, openelisTask.getOutput(), openmrsTask, diagnosticReports, importedReferences);
+
+			// this version of the Task is done with once none of its reports is missing on the LIS
+			String versionedReference = getVersionedReference(openelisTask);
+			if (versionedReference != null && getDiagnosticReportIds(openelisTask).stream()
+			        .allMatch(id -> diagnosticReports.containsKey(id)
+			                || importedReferences.contains(FhirConstants.DIAGNOSTIC_REPORT + "/" + id))) {
+				taskResults.addLisReference(versionedReference);
+			}
+
+			if (!taskResults.isEmpty()) {
+				labOnFhirService.saveTaskResults(taskResults);
+			}
+		}
+		catch (DataIntegrityViolationException | ConstraintViolationException e) {
+			// nothing of the Task was saved, the other poll saves all of it
+			log.debug("Results of task " + openmrsTaskUuid + " were imported by another poll");
+			sessionFactory.getCurrentSession().clear();
+		}
+		catch (Exception e) {
+			// nothing of the Task was saved, so the next poll imports it again
+			log.error("Could not save task " + openmrsTaskUuid + ":" + e.toString() + getStackTrace(e));
+			sessionFactory.getCurrentSession().clear();
+		}
+	}
+
+	/**
+	 * @return Task/id/_history/versionId, or null if the LIS didn't tell the Task's version
+	 */
+	private static String getVersionedReference(Task openelisTask) {
+		String id = openelisTask.getIdElement().getIdPart();
+		String versionId = openelisTask.getMeta().hasVersionId() ? openelisTask.getMeta().getVersionId()
+		        : openelisTask.getIdElement().getVersionIdPart();
+		if (id == null || versionId == null) {
+			return null;
+		}
+		return ResourceType.Task + "/" + id + "/_history/" + versionId;
+	}
+
+	private static List<String> getDiagnosticReportIds(Task openelisTask) {
+		List<String> diagnosticReportIds = new ArrayList<>();
+		for (Task.TaskOutputComponent output : openelisTask.getOutput()) {
+			if (output.getValue() instanceof Reference) {
+				String id = ((Reference) output.getValue()).getReferenceElement().getIdPart();
+				if (id != null) {
+					diagnosticReportIds.add(id);
+				}
+			}
+		}
+		return diagnosticReportIds;
+	}
+
+	/**
+	 * Fetches DiagnosticReports with their results and subjects, in searches of up to
+	 * {@link LabOnFhirConfig#getDiagnosticReportFetchSize()} reports
+	 *
+	 * @return for each DiagnosticReport id, a bundle of the report followed by its included resources
+	 */
+	Map<String, Bundle> fetchDiagnosticReports(Collection<String> diagnosticReportIds) {
+		Map<String, Bundle> diagnosticReports = new HashMap<>();
+		int fetchSize = Math.max(1, config.getDiagnosticReportFetchSize());
+		List<String> ids = new ArrayList<>(diagnosticReportIds);
+		for (int from = 0; from < ids.size(); from += fetchSize) {
+			List<String> chunk = ids.subList(from, Math.min(from + fetchSize, ids.size()));
+			Bundle searchResult = client.search().forResource(DiagnosticReport.class)
+			        .where(new TokenClientParam("_id").exactly().codes(chunk))
+			        .include(DiagnosticReport.INCLUDE_RESULT).include(DiagnosticReport.INCLUDE_SUBJECT)
+			        .count(chunk.size()).returnBundle(Bundle.class).execute();
+
+			List<Resource> resources = new ArrayList<>();
+			while (searchResult != null) {
+				searchResult.getEntry().stream().filter(Bundle.BundleEntryComponent::hasResource)
+				        .forEach(entry -> resources.add(entry.getResource()));
+				searchResult = searchResult.getLink(IBaseBundle.LINK_NEXT) != null
+				        ? client.loadPage().next(searchResult).execute() : null;
+			}
+			diagnosticReports.putAll(splitByDiagnosticReport(resources));
+		}
+		return diagnosticReports;
+	}
+
+	/**
+	 * Hands each DiagnosticReport the resources it references, in the shape of a search for that report alone
+	 */
+	private static Map<String, Bundle> splitByDiagnosticReport(List<Resource> resources) {
+		Map<String, Resource> resourcesByReference = new HashMap<>();
+		for (Resource resource : resources) {
+			resourcesByReference.put(resource.fhirType() + "/" + resource.getIdElement().getIdPart(), resource);
+		}
+
+		Map<String, Bundle> diagnosticReports = new HashMap<>();
+		for (Resource resource : resources) {
+			if (resource instanceof DiagnosticReport) {
+				DiagnosticReport diagnosticReport = (DiagnosticReport) resource;
+				Bundle diagnosticReportBundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+				diagnosticReportBundle.addEntry().setResource(diagnosticReport);
+
+				List<Reference> references = new ArrayList<>(diagnosticReport.getResult());
+				references.add(diagnosticReport.getSubject());
+				for (Reference reference : references) {
+					IIdType referenced = reference.getReferenceElement();
+					Resource included = resourcesByReference
+					        .get(referenced.getResourceType() + "/" + referenced.getIdPart());
+					if (included != null) {
+						diagnosticReportBundle.addEntry().setResource(included);
+					}
+				}
+				diagnosticReports.put(diagnosticReport.getIdElement().getIdPart(), diagnosticReportBundle);
+			}
+		}
+		return diagnosticReports;
+	}
+
+	/**
+	 * Adds the results of the LIS Task's DiagnosticReports that aren't in OpenMRS yet to the ones to save, each with its
+	 * reference in the import ledger, so a report only ever gets imported by one poll
+	 */
+	private void addResults(TaskResults taskResults, List<Task.TaskOutputComponent> output,
+	        TaskUpdateSummary openmrsTask, Map<String, Bundle> diagnosticReports, Set<String> importedReferences) {
+
+		Reference encounterReference = openmrsTask.getEncounterUuid() == null ? null
+		        : new Reference().setReference(FhirConstants.ENCOUNTER + "/" + openmrsTask.getEncounterUuid())
+		                .setType(FhirConstants.ENCOUNTER);
+		List<Reference> basedOn = new ArrayList<>();
+		for (String basedOnReference : openmrsTask.getBasedOnReferences()) {
+			basedOn.add(new Reference().setReference(basedOnReference)
+			        .setType(basedOnReference.substring(0, basedOnReference.indexOf('/'))));
+		}
+		//allExistingLoincCodes contains loinc codes of DiagReports already in OpenMRS (i.e. processed)
+		Set<String> allExistingLoincCodes = openmrsTask.getOutputLoincCodes();
 
 		if (!output.isEmpty()) {
 						
-			log.info("Got a task "+openmrsTask.getId());
+			log.info("Got a task "+openmrsTask.getTaskUuid());
 			// Save each output entry
 			for (Iterator outputRefI = output.stream().iterator(); outputRefI.hasNext();) {
 				Task.TaskOutputComponent outputRef = (Task.TaskOutputComponent) outputRefI.next();
 				String openelisDiagnosticReportUuid = ((Reference) outputRef.getValue()).getReferenceElement()
 						.getIdPart();
-				// Get Diagnostic Report and associated Observations (using include)
-				Bundle diagnosticReportBundle = client.search().forResource(DiagnosticReport.class)
-						.where(new TokenClientParam("_id").exactly().code(openelisDiagnosticReportUuid))
-						.include(DiagnosticReport.INCLUDE_RESULT).include(DiagnosticReport.INCLUDE_SUBJECT)
-						.returnBundle(Bundle.class).execute();
+				String lisReference = FhirConstants.DIAGNOSTIC_REPORT + "/" + openelisDiagnosticReportUuid;
+				if (importedReferences.contains(lisReference)) {
+					continue;
+				}
+				// Diagnostic Report and associated Observations, fetched for the whole page
+				Bundle diagnosticReportBundle = diagnosticReports.get(openelisDiagnosticReportUuid);
+				if (diagnosticReportBundle == null) {
+					log.warn("DiagnosticReport " + openelisDiagnosticReportUuid + " of Task " + openmrsTask.getTaskUuid()
+					        + " was not found on the LIS");
+					continue;
+				}
 
 				DiagnosticReport diagnosticReport = (DiagnosticReport) diagnosticReportBundle.getEntryFirstRep()
 						.getResource();
@@ -279,7 +1055,10 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 					String labTestType = "";
 					//log.warn("DIagnostic Report code is "+ diagnosticReportCode.getCode());
 					FhirContext ctx = FhirContext.forR4();
-					if (!allExistingLoincCodes.contains(diagnosticReportCode.getCode())) {
+					if (allExistingLoincCodes.contains(diagnosticReportCode.getCode())) {
+						// imported before there was a ledger
+						taskResults.addLisReference(lisReference);
+					} else {
 						if(diagnosticReportCode.getCode().equals("20447-9")){
 							log.warn("Incoming task holds results for VL");
 							labTestType = "VL";
@@ -287,19 +1066,15 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 						else{
 							log.warn("Did not register lab test type as VL");
 						}
-						// save Observation
+						// the report's Observations, saved along with it
+						List<Observation> newObservations = new ArrayList<>();
 						for (Bundle.BundleEntryComponent entry : diagnosticReportBundle.getEntry()) {
 							if (entry.hasResource()) {
 								if (ResourceType.Observation.equals(entry.getResource().getResourceType())) {
 									Observation newObs = (Observation) entry.getResource();
 									newObs.setEncounter(encounterReference);
 									newObs.setBasedOn(basedOn);
-									//Observation fhirObs = newObs;
-									newObs = observationService.create(newObs);
-									Reference obsRef = new Reference();
-									obsRef.setReference(
-											ResourceType.Observation + "/" + newObs.getIdElement().getIdPart());
-									results.add(obsRef);
+									newObservations.add(newObs);
 
 									// for VL add additional Obs
 									// if(labTestType.equals("VL")){
@@ -311,19 +1086,12 @@ public class FetchTaskUpdates extends AbstractTask implements ApplicationContext
 								}
 							}
 						}
-						diagnosticReport.setResult(results);
 						diagnosticReport.setEncounter(encounterReference);
-						diagnosticReport = diagnosticReportService.create(diagnosticReport);
-						openmrsTask.addOutput().setValue(
-								new Reference().setType(FhirConstants.DIAGNOSTIC_REPORT)
-										.setReference(diagnosticReport.getIdElement().getIdPart()))
-								.setType(diagnosticReport.getCode());
-						taskOutPutUpdated = true;
+						taskResults.addReport(lisReference, diagnosticReport, newObservations);
 					}
 				}
 			}
 		}
-		return taskOutPutUpdated;
 	}
 
 	private static Boolean containsVLValueCodes(List<Coding> list) {
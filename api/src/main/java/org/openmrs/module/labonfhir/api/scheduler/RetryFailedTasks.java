@@ -7,7 +7,7 @@ import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Task;
 import org.openmrs.module.fhir2.api.FhirTaskService;
-import org.openmrs.module.labonfhir.api.event.OrderCreationListener;
+import org.openmrs.module.labonfhir.api.fhir.LabBundleFactory;
 import org.openmrs.module.labonfhir.api.model.FailedTask;
 import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 import org.openmrs.scheduler.tasks.AbstractTask;
@@ -38,8 +38,7 @@ public class RetryFailedTasks extends AbstractTask implements ApplicationContext
     private LabOnFhirService labOnFhirService;
 
     @Autowired
-    @Qualifier("labOrderListener") 
-    private  OrderCreationListener orderCreationListener;
+    private LabBundleFactory bundleFactory;
 
     @Autowired
 	@Qualifier("fhirR4")
@@ -65,12 +64,16 @@ public class RetryFailedTasks extends AbstractTask implements ApplicationContext
         List<FailedTask> failedTasks = labOnFhirService.getAllFailedTasks(false);
         
         failedTasks.forEach(failedTask -> {
+            // orders whose Task couldn't be created have no Task to resend
+            if (failedTask.getTaskUuid() == null) {
+                return;
+            }
             Task task = fhirTaskService.get(failedTask.getTaskUuid());
             if (task == null) {
                 return;
             }
             try {
-                Bundle labBundle = orderCreationListener.createLabBundle(task);
+                Bundle labBundle = bundleFactory.createLabBundle(task);
                 client.transaction().withBundle(labBundle).execute();
                 failedTask.setIsSent(true);
                 labOnFhirService.saveOrUpdateFailedTask(failedTask);
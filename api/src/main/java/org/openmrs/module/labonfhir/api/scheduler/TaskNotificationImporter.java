@@ -0,0 +1,262 @@
+package org.openmrs.module.labonfhir.api.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Imports the completed LIS Tasks the LIS notifies of through its Task Subscription. Notifications only queue the Task
+ * ids, so the LIS gets its answer straight away; a daemon thread hands the queued Tasks to the {@link Handler}, which
+ * {@link FetchTaskUpdates} registers, to fetch them from the LIS and save their results. Once notifications arrive, the
+ * scheduled poll only runs every {@link LabOnFhirConfig#getSubscriptionSafetyNetMinutes()} minutes, to pick up the Tasks
+ * whose notification got lost.
+ */
+@Component
+public class TaskNotificationImporter {
+
+	private static final Logger log = LoggerFactory.getLogger(TaskNotificationImporter.class);
+
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Task ids queued beyond this are left to a poll
+	 */
+	static final int MAX_PENDING_TASKS = 10000;
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	private volatile Handler handler;
+
+	private final Object lock = new Object();
+
+	private final Set<String> pendingTaskIds = new LinkedHashSet<>();
+
+	private boolean pollRequested = false;
+
+	@Setter(AccessLevel.PACKAGE)
+	private volatile boolean running = false;
+
+	private volatile boolean notificationsReceived = false;
+
+	private volatile long lastPollMillis;
+
+	private Thread importer;
+
+	private final AtomicLong importedCount = new AtomicLong();
+
+	/**
+	 * Fetches completed LIS Tasks and saves their results
+	 */
+	public interface Handler {
+
+		/**
+		 * Polls for completed Tasks from the checkpoint
+		 *
+		 * @return the number of Tasks the LIS returned
+		 */
+		int poll() throws InterruptedException;
+
+		/**
+		 * Imports the given LIS Tasks, if they are completed Tasks of this instance
+		 *
+		 * @return the number of Tasks the LIS returned
+		 */
+		int importTasks(Collection<String> taskIds);
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Sets what imports the notified Tasks; until one is set, they are left to the scheduled poll
+	 */
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return the number of notified Tasks the LIS returned for import since startup
+	 */
+	public long getImportedCount() {
+		return importedCount.get();
+	}
+
+	public void start(DaemonToken daemonToken) {
+		synchronized (lock) {
+			if (running) {
+				return;
+			}
+			running = true;
+		}
+
+		importer = Daemon.runInDaemonThread(this::importLoop, daemonToken);
+		log.info("Started importing the Tasks the LIS notifies of");
+	}
+
+	/**
+	 * Stops importing; the Tasks still queued are left to the scheduled poll, which runs at its own interval again
+	 */
+	public void stop() {
+		synchronized (lock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			notificationsReceived = false;
+			pendingTaskIds.clear();
+			pollRequested = false;
+			lock.notifyAll();
+		}
+
+		if (importer != null) {
+			try {
+				importer.join(STOP_TIMEOUT_MILLIS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			importer = null;
+		}
+		log.info("Stopped importing the Tasks the LIS notifies of");
+	}
+
+	/**
+	 * Queues completed LIS Tasks for import
+	 *
+	 * @return false if the connector isn't running, so nothing is imported
+	 */
+	public boolean enqueue(Collection<String> taskIds) {
+		synchronized (lock) {
+			if (!running) {
+				return false;
+			}
+			notificationsReceived = true;
+
+			for (String taskId : taskIds) {
+				if (pendingTaskIds.size() >= MAX_PENDING_TASKS) {
+					// the checkpointed poll finds these as well, without holding them all in memory
+					log.warn("More than {} notified Tasks are waiting for import, polling for them instead",
+					    MAX_PENDING_TASKS);
+					pollRequested = true;
+					break;
+				}
+				pendingTaskIds.add(taskId);
+			}
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Makes the importer poll for completed Tasks from the checkpoint, for notifications that don't tell which Tasks
+	 * were completed
+	 *
+	 * @return false if the connector isn't running, so no poll is made
+	 */
+	public boolean requestPoll() {
+		synchronized (lock) {
+			if (!running) {
+				return false;
+			}
+			notificationsReceived = true;
+			pollRequested = true;
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the scheduled poll should run: the LIS hasn't notified of any Task since the connector started, or
+	 *         the safety net interval has passed since the last poll
+	 */
+	public boolean isPollDue() {
+		int safetyNetMinutes = config.getSubscriptionSafetyNetMinutes();
+		return !notificationsReceived || safetyNetMinutes <= 0
+		        || System.currentTimeMillis() - lastPollMillis >= TimeUnit.MINUTES.toMillis(safetyNetMinutes);
+	}
+
+	void pollStarted() {
+		lastPollMillis = System.currentTimeMillis();
+	}
+
+	private void importLoop() {
+		while (true) {
+			synchronized (lock) {
+				try {
+					while (running && pendingTaskIds.isEmpty() && !pollRequested) {
+						lock.wait();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+
+				if (!running) {
+					return;
+				}
+			}
+
+			try {
+				importPending();
+			}
+			catch (Exception e) {
+				// the Tasks that weren't saved are picked up by the safety net poll
+				log.error("Unexpected error while importing the Tasks the LIS notified of", e);
+			}
+			finally {
+				Context.clearSession();
+			}
+		}
+	}
+
+	/**
+	 * Takes the queued Task ids, and the poll if one was requested, and imports them
+	 *
+	 * @return the number of Tasks the LIS returned
+	 */
+	int importPending() throws InterruptedException {
+		List<String> taskIds;
+		boolean poll;
+		synchronized (lock) {
+			taskIds = new ArrayList<>(pendingTaskIds);
+			pendingTaskIds.clear();
+			poll = pollRequested;
+			pollRequested = false;
+		}
+
+		Handler handler = this.handler;
+		if (handler == null) {
+			// left to the scheduled poll
+			log.warn("No handler to import the {} notified Tasks", taskIds.size());
+			return 0;
+		}
+
+		int taskCount = 0;
+		if (poll) {
+			taskCount += handler.poll();
+		}
+		if (!taskIds.isEmpty()) {
+			taskCount += handler.importTasks(taskIds);
+		}
+		importedCount.addAndGet(taskCount);
+		return taskCount;
+	}
+}
@@ -1,10 +1,21 @@
 package org.openmrs.module.labonfhir.api.service;
 
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
 import org.openmrs.module.labonfhir.api.model.FailedTask;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.model.LabPollCheckpoint;
+import org.openmrs.module.labonfhir.api.model.LabResultImport;
 import org.openmrs.module.labonfhir.api.model.TaskRequest;
+import org.openmrs.module.labonfhir.api.model.TaskResults;
+import org.openmrs.module.labonfhir.api.model.TaskUpdateSummary;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.openmrs.Obs;
 import org.openmrs.api.APIException;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -60,5 +71,166 @@ public interface LabOnFhirService extends OpenmrsService{
 	@Transactional(readOnly = true)
 	TaskRequest getLastTaskRequest() throws APIException;
 
-    
+	/**
+	 * Saves the result Observations of a LIS DiagnosticReport through the ObsService, then the report with them as its
+	 * results, all in one transaction, so a report is never saved with only some of its results
+	 *
+	 * @param diagnosticReport the report, whose results are replaced with the saved Observations
+	 * @param observations the report's Observations, with their encounter and basedOn references set
+	 * @return the saved report
+	 * @throws APIException
+	 */
+	@Transactional
+	DiagnosticReport saveResultReport(DiagnosticReport diagnosticReport, List<Observation> observations)
+			throws APIException;
+
+	/**
+	 * Gets how far a poll of the LIS got
+	 *
+	 * @param name the name of the poll
+	 * @return the checkpoint, or null if the poll hasn't saved one yet
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	LabPollCheckpoint getPollCheckpoint(String name) throws APIException;
+
+	/**
+	 * Saves how far a poll of the LIS got
+	 *
+	 * @param checkpoint the checkpoint
+	 * @return the saved checkpoint
+	 * @throws APIException
+	 */
+	@Transactional
+	LabPollCheckpoint savePollCheckpoint(LabPollCheckpoint checkpoint) throws APIException;
+
+	/**
+	 * Reads what is needed to create a lab Task for an encounter in one query, without loading the encounter
+	 *
+	 * @param encounterUuid the uuid of the encounter
+	 * @param conceptIds ids of the test concepts to look for
+	 * @param conceptUuids uuids of further test concepts to look for
+	 * @return the summary, or null if the encounter has no order for any of the concepts
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	EncounterOrderSummary getEncounterOrderSummary(String encounterUuid, Collection<Integer> conceptIds,
+			Collection<String> conceptUuids) throws APIException;
+
+	/**
+	 * Returns the Obs of an encounter to add as Task inputs, with their concepts already loaded
+	 *
+	 * @param encounterId the id of the encounter
+	 * @param conceptIds ids of the concepts to restrict the Obs to; with no concept ids or uuids all Obs are returned
+	 * @param conceptUuids uuids of further concepts to restrict the Obs to
+	 * @return the non-voided leaf Obs of the encounter
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	List<Obs> getTaskInputObs(Integer encounterId, Collection<Integer> conceptIds, Collection<String> conceptUuids)
+			throws APIException;
+
+	/**
+	 * Gets the uuid of an encounter's location without loading the encounter
+	 *
+	 * @param encounterUuid the uuid of the encounter
+	 * @return the uuid of the location, or null if the encounter has none
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	String getEncounterLocationUuid(String encounterUuid) throws APIException;
+
+	/**
+	 * Reads what is needed to update lab Tasks with LIS results, without translating the Tasks
+	 *
+	 * @param taskUuids the uuids of the OpenMRS Tasks
+	 * @param loincUrl the url of the LOINC concept source
+	 * @return a summary for each of the Tasks that exists
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	List<TaskUpdateSummary> getTaskUpdateSummaries(Collection<String> taskUuids, String loincUrl) throws APIException;
+
+	/**
+	 * Saves an outbox entry; a Task's entry is saved in the transaction creating the Task, so the Task can't be created
+	 * without it
+	 *
+	 * @param entry
+	 * @return LabOutboxEntry
+	 * @throws APIException
+	 */
+	@Transactional
+	LabOutboxEntry saveOrUpdateOutboxEntry(LabOutboxEntry entry) throws APIException;
+
+	/**
+	 * Saves an order in the outbox to wait for more orders of its encounter. The order joins the window of the
+	 * encounter's orders already waiting, or opens one ending at the given time; the outbox drain creates one Task for
+	 * all of them once the window has closed.
+	 *
+	 * @param orderUuid the uuid of the order
+	 * @param encounterUuid the uuid of the order's encounter
+	 * @param windowEnd when the window closes if the order opens it
+	 * @return the saved entry
+	 * @throws APIException
+	 */
+	@Transactional
+	LabOutboxEntry saveOrderOutboxEntry(String orderUuid, String encounterUuid, Date windowEnd) throws APIException;
+
+	/**
+	 * Claims outbox entries that aren't claimed, or whose claim has expired. With a waiting order, the other orders of its
+	 * encounter are claimed as well, whether or not their window has closed.
+	 *
+	 * @param claimToken identifies this claim
+	 * @param maxEntries the maximum number of entries to claim
+	 * @param now the current time
+	 * @param claimedUntil when the claim expires if the entries haven't been sent by then
+	 * @return the claimed entries, oldest first
+	 * @throws APIException
+	 */
+	@Transactional
+	List<LabOutboxEntry> claimOutboxEntries(String claimToken, int maxEntries, Date now, Date claimedUntil)
+			throws APIException;
+
+	/**
+	 * Deletes the outbox entries of Tasks that have been sent
+	 *
+	 * @param ids the ids of the entries
+	 * @throws APIException
+	 */
+	@Transactional
+	void deleteOutboxEntries(Collection<Integer> ids) throws APIException;
+
+	/**
+	 * Releases the claim on an outbox entry that couldn't be sent; it isn't claimed again before the given retry time
+	 *
+	 * @param id the id of the entry
+	 * @param error why the entry couldn't be sent
+	 * @param retryAfter when the entry may be claimed again
+	 * @throws APIException
+	 */
+	@Transactional
+	void releaseOutboxEntry(Integer id, String error, Date retryAfter) throws APIException;
+
+	/**
+	 * Checks which LIS resources have had their results imported
+	 *
+	 * @param lisReferences references as recorded by {@link LabResultImport}
+	 * @return the references among them that have been imported
+	 * @throws APIException
+	 */
+	@Transactional(readOnly = true)
+	List<String> getImportedLisReferences(Collection<String> lisReferences) throws APIException;
+
+	/**
+	 * Saves the new results of a LIS Task in one transaction: records its LIS resources in the import ledger, saves each
+	 * report with {@link #saveResultReport}, and adds the reports to the OpenMRS Task. If any of it fails, none of it is
+	 * saved, so the results are imported again by the next poll; if another poll recorded one of the resources first,
+	 * the ledger's unique reference fails this one before any result is saved.
+	 *
+	 * @param taskResults the results and the references to record
+	 * @throws APIException
+	 */
+	@Transactional
+	void saveTaskResults(TaskResults taskResults) throws APIException;
+
 }
@@ -1,11 +1,31 @@
 package org.openmrs.module.labonfhir.api.service.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Task;
+import org.openmrs.Obs;
 import org.openmrs.api.APIException;
+import org.openmrs.api.ObsService;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirDiagnosticReportService;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.fhir2.api.translators.ObservationTranslator;
 import org.openmrs.module.labonfhir.api.dao.LabOnFhirDao;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
 import org.openmrs.module.labonfhir.api.model.FailedTask;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.model.LabPollCheckpoint;
+import org.openmrs.module.labonfhir.api.model.LabResultImport;
 import org.openmrs.module.labonfhir.api.model.TaskRequest;
+import org.openmrs.module.labonfhir.api.model.TaskResults;
+import org.openmrs.module.labonfhir.api.model.TaskUpdateSummary;
 import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -13,6 +33,18 @@ public class LabOnFhirServiceImpl implements LabOnFhirService{
     @Autowired
 	LabOnFhirDao dao;
 
+    @Autowired
+    ObservationTranslator observationTranslator;
+
+    @Autowired
+    ObsService obsService;
+
+    @Autowired
+    FhirDiagnosticReportService diagnosticReportService;
+
+    @Autowired
+    FhirTaskService taskService;
+
     /**
 	 * Injected in moduleApplicationContext.xml
 	 */
@@ -54,5 +86,111 @@ public class LabOnFhirServiceImpl implements LabOnFhirService{
     public TaskRequest saveOrUpdateTaskRequest(TaskRequest taskRequest) throws APIException {
         return dao.saveOrUpdateTaskRequest(taskRequest);
     }
-    
+
+    @Override
+    public DiagnosticReport saveResultReport(DiagnosticReport diagnosticReport, List<Observation> observations)
+            throws APIException {
+        // the same translation FhirObservationService.create does, but saved in this transaction rather than one each
+        List<Reference> results = new ArrayList<>(observations.size());
+        for (Observation observation : observations) {
+            Obs obs = obsService.saveObs(observationTranslator.toOpenmrsType(observation), null);
+            results.add(new Reference().setReference(ResourceType.Observation + "/" + obs.getUuid()));
+        }
+
+        diagnosticReport.setResult(results);
+        return diagnosticReportService.create(diagnosticReport);
+    }
+
+    @Override
+    public LabPollCheckpoint getPollCheckpoint(String name) throws APIException {
+        return dao.getPollCheckpoint(name);
+    }
+
+    @Override
+    public LabPollCheckpoint savePollCheckpoint(LabPollCheckpoint checkpoint) throws APIException {
+        return dao.savePollCheckpoint(checkpoint);
+    }
+
+    @Override
+    public EncounterOrderSummary getEncounterOrderSummary(String encounterUuid, Collection<Integer> conceptIds,
+            Collection<String> conceptUuids) throws APIException {
+        return dao.getEncounterOrderSummary(encounterUuid, conceptIds, conceptUuids);
+    }
+
+    @Override
+    public List<Obs> getTaskInputObs(Integer encounterId, Collection<Integer> conceptIds,
+            Collection<String> conceptUuids) throws APIException {
+        return dao.getTaskInputObs(encounterId, conceptIds, conceptUuids);
+    }
+
+    @Override
+    public String getEncounterLocationUuid(String encounterUuid) throws APIException {
+        return dao.getEncounterLocationUuid(encounterUuid);
+    }
+
+    @Override
+    public List<TaskUpdateSummary> getTaskUpdateSummaries(Collection<String> taskUuids, String loincUrl)
+            throws APIException {
+        return dao.getTaskUpdateSummaries(taskUuids, loincUrl);
+    }
+
+    @Override
+    public LabOutboxEntry saveOrUpdateOutboxEntry(LabOutboxEntry entry) throws APIException {
+        return dao.saveOrUpdateOutboxEntry(entry);
+    }
+
+    @Override
+    public LabOutboxEntry saveOrderOutboxEntry(String orderUuid, String encounterUuid, Date windowEnd)
+            throws APIException {
+        Date openWindowEnd = dao.getOrderWindowEnd(encounterUuid, new Date());
+        LabOutboxEntry entry = LabOutboxEntry.forOrder(orderUuid, encounterUuid);
+        entry.setClaimedUntil(openWindowEnd != null ? openWindowEnd : windowEnd);
+        return dao.saveOrUpdateOutboxEntry(entry);
+    }
+
+    @Override
+    public List<LabOutboxEntry> claimOutboxEntries(String claimToken, int maxEntries, Date now, Date claimedUntil)
+            throws APIException {
+        return dao.claimOutboxEntries(claimToken, maxEntries, now, claimedUntil);
+    }
+
+    @Override
+    public void deleteOutboxEntries(Collection<Integer> ids) throws APIException {
+        dao.deleteOutboxEntries(ids);
+    }
+
+    @Override
+    public void releaseOutboxEntry(Integer id, String error, Date retryAfter) throws APIException {
+        dao.releaseOutboxEntry(id, error, retryAfter);
+    }
+
+    @Override
+    public List<String> getImportedLisReferences(Collection<String> lisReferences) throws APIException {
+        return dao.getImportedLisReferences(lisReferences);
+    }
+
+    @Override
+    public void saveTaskResults(TaskResults taskResults) throws APIException {
+        // the ledger first, so a Task another poll is importing fails here rather than after its results were saved
+        for (String lisReference : taskResults.getLisReferences()) {
+            dao.saveResultImport(new LabResultImport(lisReference, taskResults.getTaskUuid()));
+        }
+
+        List<Task.TaskOutputComponent> newOutputs = new ArrayList<>();
+        for (TaskResults.Report report : taskResults.getReports()) {
+            DiagnosticReport diagnosticReport = saveResultReport(report.getDiagnosticReport(), report.getObservations());
+            newOutputs.add(new Task.TaskOutputComponent()
+                    .setValue(new Reference().setType(FhirConstants.DIAGNOSTIC_REPORT)
+                            .setReference(diagnosticReport.getIdElement().getIdPart()))
+                    .setType(diagnosticReport.getCode()));
+        }
+
+        // the full Task is only loaded for the ones that got new results
+        if (!newOutputs.isEmpty()) {
+            Task task = taskService.get(taskResults.getTaskUuid());
+            task.setStatus(taskResults.getStatus());
+            newOutputs.forEach(task::addOutput);
+            taskService.update(taskResults.getTaskUuid(), task);
+        }
+    }
 }
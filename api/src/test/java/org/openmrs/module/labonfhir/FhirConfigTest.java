@@ -0,0 +1,134 @@
+package org.openmrs.module.labonfhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.api.fhir.LabHttpCompression;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FhirConfigTest {
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Spy
+	private FhirContext fhirContext = FhirContext.forR4();
+
+	@Spy
+	private LabHttpCompression httpCompression = new LabHttpCompression();
+
+	@InjectMocks
+	private FhirConfig fhirConfig;
+
+	private StandInFhirServer lis;
+
+	@Before
+	public void setup() throws Exception {
+		lis = new StandInFhirServer();
+		fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		when(config.getLisUrl()).thenReturn(lis.getBaseUrl());
+		when(config.getAuthType()).thenReturn(LabOnFhirConfig.AuthType.BASIC);
+		when(config.getLisUserName()).thenReturn("admin");
+		when(config.getLisPassword()).thenReturn("Admin123");
+		when(config.getHttpMaxConnections()).thenReturn(4);
+		when(config.getHttpKeepAliveSeconds()).thenReturn(30);
+		when(config.getHttpConnectTimeout()).thenReturn(1000);
+		when(config.getHttpSocketTimeout()).thenReturn(5000);
+	}
+
+	@After
+	public void tearDown() {
+		lis.close();
+	}
+
+	@Test
+	public void getFhirClient_shouldReuseConnectionsToTheLis() throws Exception {
+		IRestfulClientFactory sharedFactory = fhirContext.getRestfulClientFactory();
+
+		IGenericClient client = fhirConfig.getFhirClient();
+		for (int i = 0; i < 5; i++) {
+			client.search().forResource("Task").returnBundle(Bundle.class).execute();
+		}
+
+		assertThat(lis.getRequests(), hasSize(5));
+		// all five requests went over one kept-alive connection
+		assertThat(lis.getRequests().stream().map(StandInFhirServer.RecordedRequest::getRemotePort)
+		        .collect(Collectors.toSet()), hasSize(1));
+		// the fhirR4 context shared with the fhir2 module keeps its own client factory
+		assertThat(fhirContext.getRestfulClientFactory(), is(sameInstance(sharedFactory)));
+	}
+
+	@Test
+	public void getFhirClient_shouldGzipTrafficWhenCompressionIsEnabled() throws Exception {
+		when(config.isHttpCompressionEnabled()).thenReturn(true);
+		lis.setGzipResponses(true);
+		lis.setHandler(request -> "POST".equals(request.getMethod()) ? StandInFhirServer.EMPTY_TRANSACTION_RESPONSE
+		        : searchsetOf(50));
+
+		IGenericClient client = fhirConfig.getFhirClient();
+		Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 50; i++) {
+			transaction.addEntry().setResource(new Patient().addName(new HumanName().setFamily("Doe").addGiven("John")))
+			        .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+		}
+		client.transaction().withBundle(transaction).execute();
+		Bundle searchset = client.search().forResource("Task").returnBundle(Bundle.class).execute();
+
+		StandInFhirServer.RecordedRequest post = lis.getRequests().get(0);
+		assertThat(post.getHeader("Content-Encoding"), equalTo("gzip"));
+		String body = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(post.getBody())),
+		    StandardCharsets.UTF_8);
+		assertThat(fhirContext.newJsonParser().parseResource(Bundle.class, body).getEntry(), hasSize(50));
+
+		assertThat(searchset.getEntry(), hasSize(50));
+		assertThat(httpCompression.getRequestCompressionRatio(), greaterThan(2.0));
+		assertThat(httpCompression.getResponseCompressionRatio(), greaterThan(2.0));
+	}
+
+	@Test
+	public void getFhirClient_shouldNotGzipRequestsByDefault() throws Exception {
+		IGenericClient client = fhirConfig.getFhirClient();
+		client.transaction().withBundle(new Bundle().setType(Bundle.BundleType.TRANSACTION)).execute();
+
+		assertThat(lis.getRequests().get(0).getHeader("Content-Encoding"), nullValue());
+		assertThat(httpCompression.getRequestBytes(), is(0L));
+	}
+
+	private static String searchsetOf(int count) {
+		StringBuilder entries = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			entries.append(i == 0 ? "" : ",").append("{\"resource\":{\"resourceType\":\"Task\",\"id\":\"task-")
+			        .append(i).append("\",\"status\":\"requested\",\"intent\":\"order\"}}");
+		}
+		return "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":" + count + ",\"entry\":["
+		        + entries + "]}";
+	}
+}
@@ -0,0 +1,71 @@
+package org.openmrs.module.labonfhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabOnFhirConfigTest {
+
+	private static final String LIS_URL = "http://lis.example.org/fhir";
+
+	private static final String NEW_LIS_URL = "http://other-lis.example.org/fhir";
+
+	@Mock
+	private AdministrationService administrationService;
+
+	@InjectMocks
+	private LabOnFhirConfig config;
+
+	@Test
+	public void getters_shouldOnlyReadGlobalPropertiesOnce() {
+		when(administrationService.getGlobalPropertiesByPrefix("labonfhir.")).thenReturn(
+		    Arrays.asList(new GlobalProperty(LabOnFhirConfig.GP_LIS_URL, LIS_URL),
+		        new GlobalProperty(LabOnFhirConfig.GP_LAB_UPDATE_TRIGGER_OBJECT, "Order")));
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(config.getLisUrl(), equalTo(LIS_URL));
+			assertThat(config.getLabUpdateTriggerObject(), equalTo("Order"));
+			assertThat(config.getActivateFhirPush(), is(true));
+		}
+
+		// one query for all the properties, and none per property
+		verify(administrationService, times(1)).getGlobalPropertiesByPrefix("labonfhir.");
+		verify(administrationService, never()).getGlobalProperty(Matchers.anyString());
+	}
+
+	@Test
+	public void globalPropertyChanged_shouldReplaceSettings() {
+		when(administrationService.getGlobalPropertiesByPrefix("labonfhir."))
+		        .thenReturn(Collections.singletonList(new GlobalProperty(LabOnFhirConfig.GP_LIS_URL, LIS_URL)));
+		assertThat(config.getLisUrl(), equalTo(LIS_URL));
+
+		config.globalPropertyChanged(new GlobalProperty(LabOnFhirConfig.GP_LIS_URL, NEW_LIS_URL));
+		assertThat(config.getLisUrl(), equalTo(NEW_LIS_URL));
+
+		config.globalPropertyChanged(new GlobalProperty(LabOnFhirConfig.GP_ACTIVATE_FHIR_PUSH, "false"));
+		assertThat(config.getActivateFhirPush(), is(false));
+	}
+
+	@Test
+	public void supportsPropertyName_shouldOnlySupportLabOnFhirProperties() {
+		assertThat(config.supportsPropertyName(LabOnFhirConfig.GP_ORDER_TEST_UUIDS), is(true));
+		assertThat(config.supportsPropertyName("fhir2.paging.default"), is(false));
+	}
+}
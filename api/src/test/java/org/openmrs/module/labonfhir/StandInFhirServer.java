@@ -0,0 +1,159 @@
+package org.openmrs.module.labonfhir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal local stand-in for the LIS FHIR server. Every request is recorded and answered by the configured
+ * {@link Handler}; by default transactions get an empty transaction-response and everything else an empty searchset.
+ */
+public class StandInFhirServer implements AutoCloseable {
+
+	public static final String EMPTY_TRANSACTION_RESPONSE = "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\"}";
+
+	public static final String EMPTY_SEARCHSET = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":0}";
+
+	public interface Handler {
+
+		/**
+		 * @return the JSON response body, or null to answer with 404
+		 */
+		String handle(RecordedRequest request) throws IOException;
+	}
+
+	public static class RecordedRequest {
+
+		private final String method;
+
+		private final String uri;
+
+		private final Headers headers;
+
+		private final byte[] body;
+
+		private final int remotePort;
+
+		RecordedRequest(String method, String uri, Headers headers, byte[] body, int remotePort) {
+			this.method = method;
+			this.uri = uri;
+			this.headers = headers;
+			this.body = body;
+			this.remotePort = remotePort;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public String getHeader(String name) {
+			return headers.getFirst(name);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * @return the client port the request came from; requests sent over the same connection share it
+		 */
+		public int getRemotePort() {
+			return remotePort;
+		}
+	}
+
+	private final HttpServer server;
+
+	private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+
+	private volatile boolean gzipResponses;
+
+	private volatile Handler handler = request -> "POST".equals(request.getMethod()) ? EMPTY_TRANSACTION_RESPONSE
+	        : EMPTY_SEARCHSET;
+
+	public StandInFhirServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.createContext("/fhir", this::handleExchange);
+		server.start();
+	}
+
+	public String getBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+	}
+
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Makes the server gzip its responses to requests that accept it
+	 */
+	public void setGzipResponses(boolean gzipResponses) {
+		this.gzipResponses = gzipResponses;
+	}
+
+	public List<RecordedRequest> getRequests() {
+		return requests;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handleExchange(HttpExchange exchange) throws IOException {
+		RecordedRequest request = new RecordedRequest(exchange.getRequestMethod(), exchange.getRequestURI().toString(),
+		        exchange.getRequestHeaders(), readFully(exchange.getRequestBody()), exchange.getRemoteAddress().getPort());
+		requests.add(request);
+
+		String response;
+		try {
+			response = handler.handle(request);
+		}
+		catch (RuntimeException e) {
+			response = null;
+		}
+
+		byte[] responseBody = response == null ? new byte[0] : response.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (gzipResponses && responseBody.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+				gzip.write(responseBody);
+			}
+			responseBody = compressed.toByteArray();
+			exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(response == null ? 404 : 200, responseBody.length == 0 ? -1 : responseBody.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(responseBody);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,59 @@
+package org.openmrs.module.labonfhir.api;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConceptFilterTest {
+
+	private static final String VIRAL_LOAD_UUID = "160046AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	private static final String CD4_UUID = "165254AAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	private static final String NOT_YET_CREATED_UUID = "92d73e24-122e-4f3e-8447-fb972f01b617";
+
+	@Mock
+	private ConceptService conceptService;
+
+	@Test
+	public void compile_shouldMatchConceptsById() {
+		when(conceptService.getConceptByUuid(VIRAL_LOAD_UUID)).thenReturn(concept(856, VIRAL_LOAD_UUID));
+		when(conceptService.getConceptByUuid(CD4_UUID)).thenReturn(concept(5497, CD4_UUID));
+
+		ConceptFilter filter = ConceptFilter.compile(VIRAL_LOAD_UUID + ", " + CD4_UUID, conceptService);
+
+		assertThat(filter.getConceptIds(), contains(856, 5497));
+		// matching relies on the id only, the uuid of a lazily loaded concept is never read
+		assertThat(filter.accepts(concept(856, null)), is(true));
+		assertThat(filter.accepts(concept(5089, "5089AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA")), is(false));
+		assertThat(filter.acceptsConceptId(5497), is(true));
+	}
+
+	@Test
+	public void compile_shouldMatchUnresolvedConceptsByUuid() {
+		ConceptFilter filter = ConceptFilter.compile(NOT_YET_CREATED_UUID, conceptService);
+
+		assertThat(filter.isEmpty(), is(false));
+		assertThat(filter.accepts(concept(1000, NOT_YET_CREATED_UUID)), is(true));
+	}
+
+	@Test
+	public void compile_shouldBeEmptyForBlankList() {
+		assertThat(ConceptFilter.compile(" , ", conceptService).isEmpty(), is(true));
+	}
+
+	private static Concept concept(Integer id, String uuid) {
+		Concept concept = new Concept(id);
+		concept.setUuid(uuid);
+		return concept;
+	}
+}
@@ -1,17 +1,214 @@
 package org.openmrs.module.labonfhir.api;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.Patient;
+import org.openmrs.TestOrder;
+import org.openmrs.api.ConceptService;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.fhir2.api.translators.ConceptTranslator;
+import org.openmrs.module.fhir2.api.translators.ObservationValueTranslator;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 
+@RunWith(MockitoJUnitRunner.class)
 public class LabOrderHandlerTest {
 
+	private static final String ENCOUNTER_UUID = "6519d653-393b-4118-9c83-a3715b82d4ac";
+
+	private static final String PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
+
+	private static final String LOCATION_UUID = "58c57d25-8d39-41ab-8422-108a0c277d98";
+
+	private static final String PROVIDER_UUID = "c2299800-cca9-11e0-9572-0800200c9a66";
+
+	private static final String LIS_USER_UUID = "1c3db49d-440a-11e6-a65c-00e04c680037";
+
+	private static final String VIRAL_LOAD_UUID = "856AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA";
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private FhirTaskService taskService;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@Mock
+	private ConceptTranslator conceptTranslator;
+
+	@Mock
+	private ObservationValueTranslator observationValueTranslator;
+
+	@Mock
+	private ConceptService conceptService;
+
+	@InjectMocks
+	private LabOrderHandler handler;
+
 	@Before
 	public void setUp() throws Exception {
+		when(config.getLisUserUuid()).thenReturn(LIS_USER_UUID);
+		when(taskService.create(Matchers.any(Task.class))).thenAnswer(invocation -> invocation.getArguments()[0]);
+	}
+
+	@Test
+	public void createOrder_shouldCreateTaskAndERferenceOrder() throws Exception {
+		EncounterOrderSummary summary = new EncounterOrderSummary(12, ENCOUNTER_UUID, PATIENT_UUID, LOCATION_UUID,
+		        PROVIDER_UUID, Arrays.asList("order-1", "order-2"));
+
+		Task task = handler.createOrder(summary);
 
+		assertThat(task.getBasedOn().stream().map(Reference::getReference).collect(Collectors.toList()),
+		    contains("ServiceRequest/order-1", "ServiceRequest/order-2"));
+		assertThat(task.getFor().getReference(), equalTo("Patient/" + PATIENT_UUID));
+		assertThat(task.getEncounter().getReference(), equalTo("Encounter/" + ENCOUNTER_UUID));
+		assertThat(task.getLocation().getReference(), equalTo("Location/" + LOCATION_UUID));
+		assertThat(task.getRequester().getReference(), equalTo("Practitioner/" + PROVIDER_UUID));
+		assertThat(task.getOwner().getReference(), equalTo("Practitioner/" + LIS_USER_UUID));
+		assertThat(task.getStatus(), is(Task.TaskStatus.REQUESTED));
+		// everything came from the summary, no Obs were needed
+		verifyZeroInteractions(labOnFhirService);
 	}
 
 	@Test
-	public void createOrder_shouldCreateTaskAndERferenceOrder() {
+	public void createOrder_shouldLeaveOutMissingLocationAndRequester() throws Exception {
+		EncounterOrderSummary summary = new EncounterOrderSummary(12, ENCOUNTER_UUID, PATIENT_UUID, null, null,
+		        Arrays.asList("order-1"));
+
+		Task task = handler.createOrder(summary);
+
+		assertThat(task.hasLocation(), is(false));
+		assertThat(task.hasRequester(), is(false));
+	}
+
+	@Test
+	public void createOrder_shouldBaseOneTaskOnAllLabOrders() throws Exception {
+		Concept viralLoad = new Concept(856);
+		Concept weight = new Concept(5089);
+		when(config.getOrderTestUuids()).thenReturn(VIRAL_LOAD_UUID);
+		when(conceptService.getConceptByUuid(VIRAL_LOAD_UUID)).thenReturn(viralLoad);
+
+		Encounter encounter = new Encounter(12);
+		encounter.setUuid(ENCOUNTER_UUID);
+		Patient patient = new Patient();
+		patient.setUuid(PATIENT_UUID);
+		encounter.setPatient(patient);
+
+		Task task = handler.createOrder(Arrays.asList(order("order-1", viralLoad, encounter),
+		    order("order-2", weight, encounter), order("order-3", viralLoad, encounter)));
+
+		assertThat(task.getBasedOn().stream().map(Reference::getReference).collect(Collectors.toList()),
+		    contains("ServiceRequest/order-1", "ServiceRequest/order-3"));
+		assertThat(task.getFor().getReference(), equalTo("Patient/" + PATIENT_UUID));
+		assertThat(task.getEncounter().getReference(), equalTo("Encounter/" + ENCOUNTER_UUID));
+		verify(taskService, times(1)).create(Matchers.any(Task.class));
+	}
+
+	@Test
+	public void createOrder_shouldBaseTheEncounterTaskOnVoidedOrdersAsWell() throws Exception {
+		Concept viralLoad = new Concept(856);
+		when(config.getOrderTestUuids()).thenReturn(VIRAL_LOAD_UUID);
+		when(conceptService.getConceptByUuid(VIRAL_LOAD_UUID)).thenReturn(viralLoad);
+
+		Encounter encounter = new Encounter(12);
+		encounter.setUuid(ENCOUNTER_UUID);
+		Patient patient = new Patient();
+		patient.setUuid(PATIENT_UUID);
+		encounter.setPatient(patient);
+		TestOrder voided = order("order-1", viralLoad, encounter);
+		voided.setVoided(true);
+		encounter.setOrders(new LinkedHashSet<>(Arrays.<Order> asList(voided, order("order-2", viralLoad, encounter))));
+
+		Task task = handler.createOrder(encounter);
+
+		assertThat(task.getBasedOn().stream().map(Reference::getReference).collect(Collectors.toList()),
+		    containsInAnyOrder("ServiceRequest/order-1", "ServiceRequest/order-2"));
+	}
+
+	@Test
+	public void createTaskInputs_shouldTranslateEachConceptOnce() {
+		Concept viralLoad = new Concept(856);
+		when(config.getTaskInputObsConceptUuids()).thenReturn("");
+		when(labOnFhirService.getTaskInputObs(Matchers.eq(12), Matchers.anyCollectionOf(Integer.class),
+		    Matchers.anyCollectionOf(String.class))).thenReturn(Arrays.asList(obs(viralLoad, 1200), obs(viralLoad, 40)));
+		when(conceptTranslator.toFhirResource(viralLoad)).thenReturn(new CodeableConcept().setText("Viral load"));
+		when(observationValueTranslator.toFhirResource(Matchers.any(Obs.class)))
+		        .thenAnswer(invocation -> new Quantity(((Obs) invocation.getArguments()[0]).getValueNumeric()));
+
+		List<Task.ParameterComponent> inputs = handler.createTaskInputs(12);
+
+		assertThat(inputs, hasSize(2));
+		assertThat(inputs.get(0).getType().getText(), equalTo("Viral load"));
+		assertThat(((Quantity) inputs.get(1).getValue()).getValue().intValue(), is(40));
+		verify(conceptTranslator, times(1)).toFhirResource(viralLoad);
+	}
+
+	@Test
+	public void createOrder_shouldAddTaskToOutboxWhenPushIsActive() throws Exception {
+		when(config.getActivateFhirPush()).thenReturn(true);
+		when(taskService.create(Matchers.any(Task.class)))
+		        .thenAnswer(invocation -> ((Task) invocation.getArguments()[0]).setId("new-task"));
+
+		handler.createOrder(new EncounterOrderSummary(12, ENCOUNTER_UUID, PATIENT_UUID, null, null,
+		        Arrays.asList("order-1")));
+
+		ArgumentCaptor<LabOutboxEntry> entry = ArgumentCaptor.forClass(LabOutboxEntry.class);
+		verify(labOnFhirService).saveOrUpdateOutboxEntry(entry.capture());
+		assertThat(entry.getValue().getTaskUuid(), equalTo("new-task"));
+	}
+
+	@Test
+	public void createOrder_shouldReturnNullWithoutSummary() throws Exception {
+		assertThat(handler.createOrder((EncounterOrderSummary) null), nullValue());
+	}
+
+	private static TestOrder order(String uuid, Concept concept, Encounter encounter) {
+		TestOrder order = new TestOrder();
+		order.setUuid(uuid);
+		order.setConcept(concept);
+		order.setEncounter(encounter);
+		return order;
+	}
 
+	private static Obs obs(Concept concept, double value) {
+		Obs obs = new Obs();
+		obs.setConcept(concept);
+		obs.setValueNumeric(value);
+		return obs;
 	}
 }
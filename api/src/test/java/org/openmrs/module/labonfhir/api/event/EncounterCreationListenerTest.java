@@ -1,17 +1,76 @@
 package org.openmrs.module.labonfhir.api.event;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jms.MapMessage;
+
+import java.util.Collections;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.api.ConceptFilter;
+import org.openmrs.module.labonfhir.api.LabOrderHandler;
+import org.openmrs.module.labonfhir.api.model.EncounterOrderSummary;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
 
+@RunWith(MockitoJUnitRunner.class)
 public class EncounterCreationListenerTest {
 
+	private static final String ENCOUNTER_UUID = "6519d653-393b-4118-9c83-a3715b82d4ac";
+
+	@Mock
+	private LabOrderHandler handler;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@Mock
+	private MapMessage message;
+
+	@InjectMocks
+	private EncounterCreationListener listener;
+
 	@Before
 	public void setUp() throws Exception {
+		when(message.getString("uuid")).thenReturn(ENCOUNTER_UUID);
+		when(handler.getTestConceptFilter()).thenReturn(ConceptFilter.compile(null, null));
 	}
 
 	@Test
 	public void onMessage() {
 	}
+
+	@Test
+	public void processMessage_shouldDropEncountersWithoutLabOrdersBeforeLoadingThem() {
+		when(labOnFhirService.getEncounterOrderSummary(Matchers.eq(ENCOUNTER_UUID),
+		    Matchers.anyCollectionOf(Integer.class), Matchers.anyCollectionOf(String.class))).thenReturn(null);
+
+		listener.processMessage(message);
+
+		verify(handler, never()).createOrder(Matchers.any(EncounterOrderSummary.class));
+		assertEquals(1, listener.getEventsFiltered());
+		assertEquals(0, listener.getEventsProcessed());
+	}
+
+	@Test
+	public void processMessage_shouldCreateTaskFromOrderSummary() throws Exception {
+		EncounterOrderSummary summary = new EncounterOrderSummary(12, ENCOUNTER_UUID, "patient-uuid", null, null,
+		        Collections.singletonList("order-uuid"));
+		when(labOnFhirService.getEncounterOrderSummary(Matchers.eq(ENCOUNTER_UUID),
+		    Matchers.anyCollectionOf(Integer.class), Matchers.anyCollectionOf(String.class))).thenReturn(summary);
+
+		listener.processMessage(message);
+
+		verify(handler).createOrder(summary);
+		assertEquals(0, listener.getEventsFiltered());
+		assertEquals(1, listener.getEventsProcessed());
+	}
 }
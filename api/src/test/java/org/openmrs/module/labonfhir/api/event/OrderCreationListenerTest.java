@@ -0,0 +1,116 @@
+package org.openmrs.module.labonfhir.api.event;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jms.MapMessage;
+
+import java.util.Date;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Encounter;
+import org.openmrs.Order;
+import org.openmrs.TestOrder;
+import org.openmrs.api.OrderService;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.LabOrderHandler;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.springframework.transaction.UnexpectedRollbackException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OrderCreationListenerTest {
+
+	private static final String ENCOUNTER_UUID = "6519d653-393b-4118-9c83-a3715b82d4ac";
+
+	@Mock
+	private LabOrderHandler handler;
+
+	@Mock
+	private OrderService orderService;
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@InjectMocks
+	private OrderCreationListener listener;
+
+	@Test
+	public void processMessage_shouldLeaveTheOrdersOfAnEncounterInTheOutbox() throws Exception {
+		Encounter encounter = new Encounter();
+		encounter.setUuid(ENCOUNTER_UUID);
+		order("order-vl", encounter);
+		order("order-cd4", encounter);
+		when(config.getOrderCoalesceWindowMillis()).thenReturn(60000L);
+
+		listener.processMessage(message("order-vl"));
+		listener.processMessage(message("order-cd4"));
+
+		// the outbox drain creates their Task once the window has closed, even after a restart
+		verify(labOnFhirService).saveOrderOutboxEntry(Matchers.eq("order-vl"), Matchers.eq(ENCOUNTER_UUID),
+		    Matchers.any(Date.class));
+		verify(labOnFhirService).saveOrderOutboxEntry(Matchers.eq("order-cd4"), Matchers.eq(ENCOUNTER_UUID),
+		    Matchers.any(Date.class));
+		verify(handler, never()).createOrder(Matchers.any(Order.class));
+	}
+
+	@Test
+	public void processMessage_shouldCreateTaskStraightAwayWithoutWindow() throws Exception {
+		Encounter encounter = new Encounter();
+		encounter.setUuid(ENCOUNTER_UUID);
+		TestOrder viralLoad = order("order-vl", encounter);
+
+		listener.processMessage(message("order-vl"));
+
+		verify(handler).createOrder(viralLoad);
+		verify(labOnFhirService, never()).saveOrderOutboxEntry(Matchers.anyString(), Matchers.anyString(),
+		    Matchers.any(Date.class));
+	}
+
+	@Test
+	public void createTask_shouldLeaveAnOrderWhoseTaskCouldNotBeCreatedInTheOutbox() throws Exception {
+		Encounter encounter = new Encounter();
+		encounter.setUuid(ENCOUNTER_UUID);
+		TestOrder viralLoad = order("order-vl", encounter);
+		// the transaction of createOrder was rolled back
+		when(handler.createOrder(viralLoad)).thenThrow(new UnexpectedRollbackException("rolled back"));
+
+		Date before = new Date();
+		listener.createTask(viralLoad);
+
+		ArgumentCaptor<LabOutboxEntry> entry = ArgumentCaptor.forClass(LabOutboxEntry.class);
+		verify(labOnFhirService).saveOrUpdateOutboxEntry(entry.capture());
+		assertThat(entry.getValue().getOrderUuid(), equalTo("order-vl"));
+		assertThat(entry.getValue().getEncounterUuid(), equalTo(ENCOUNTER_UUID));
+		assertThat(entry.getValue().getLastError(), equalTo("rolled back"));
+		assertThat(entry.getValue().getClaimedUntil(), greaterThan(before));
+	}
+
+	private TestOrder order(String uuid, Encounter encounter) {
+		TestOrder order = new TestOrder();
+		order.setUuid(uuid);
+		order.setEncounter(encounter);
+		when(orderService.getOrderByUuid(uuid)).thenReturn(order);
+		return order;
+	}
+
+	private static MapMessage message(String orderUuid) throws Exception {
+		MapMessage message = mock(MapMessage.class);
+		when(message.getString("uuid")).thenReturn(orderUuid);
+		return message;
+	}
+}
@@ -0,0 +1,132 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.api.FhirDiagnosticReportService;
+import org.openmrs.module.fhir2.api.FhirObservationService;
+import org.openmrs.module.fhir2.api.FhirServiceRequestService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabBundleFactoryTest {
+
+	@Mock
+	private FhirServiceRequestService fhirServiceRequestService;
+
+	@Mock
+	private FhirObservationService fhirObservationService;
+
+	@Mock
+	private FhirDiagnosticReportService fhirDiagnosticReportService;
+
+	@Mock
+	private LabSupportingInfoCache supportingInfoCache;
+
+	@InjectMocks
+	private LabBundleFactory bundleFactory;
+
+	@Test
+	public void addSupportingInfo_shouldLoadAllSupportingObservationsInOneQuery() {
+		ServiceRequest viralLoad = serviceRequest("order-1", "obs-regimen", "Current Regimen", "obs-cd4", "Last CD4",
+		    "obs-vl", "Prev VL Results");
+		ServiceRequest cd4 = serviceRequest("order-2", "obs-regimen", "Current Regimen", "obs-first-cd4", "First CD4");
+
+		Task task = new Task();
+		task.addBasedOn(new Reference("ServiceRequest/order-1").setType("ServiceRequest"));
+		task.addBasedOn(new Reference("ServiceRequest/order-2").setType("ServiceRequest"));
+
+		when(fhirObservationService.get(Matchers.anyCollectionOf(String.class))).thenReturn(
+		    Arrays.asList(observation("obs-regimen"), observation("obs-cd4"), observation("obs-vl"),
+		        observation("obs-first-cd4")));
+
+		List<IBaseResource> labResources = new ArrayList<>(Arrays.asList(task, viralLoad, cd4));
+		bundleFactory.addSupportingInfo(task, labResources);
+
+		// the ServiceRequests come from the Task:based-on include and the Obs from a single bulk load
+		verifyZeroInteractions(fhirServiceRequestService);
+		verifyZeroInteractions(fhirDiagnosticReportService);
+		verify(fhirObservationService, times(1)).get(Matchers.anyCollectionOf(String.class));
+		verify(fhirObservationService, never()).get(Matchers.anyString());
+
+		// the regimen shared by both orders is only added once
+		assertThat(labResources, hasSize(7));
+		assertThat(hasDisaCode(labResources, "obs-regimen", "CTREA"), is(true));
+		assertThat(hasDisaCode(labResources, "obs-cd4", "LCD4"), is(true));
+		assertThat(hasDisaCode(labResources, "obs-vl", "PVLD"), is(true));
+		assertThat(hasDisaCode(labResources, "obs-first-cd4", "FCD4"), is(true));
+	}
+
+	@Test
+	public void addSupportingInfo_shouldRecodeCopiesOfCachedObservations() {
+		ServiceRequest viralLoad = serviceRequest("order-1", "obs-regimen", "Current Regimen", "obs-vl",
+		    "Prev VL Results");
+		Task task = new Task();
+		task.addBasedOn(new Reference("ServiceRequest/order-1").setType("ServiceRequest"));
+
+		Observation cachedRegimen = observation("obs-regimen");
+		Map<String, Observation> cached = new HashMap<>();
+		cached.put("obs-regimen", cachedRegimen);
+		when(supportingInfoCache.getObservations(Matchers.anyCollectionOf(String.class))).thenReturn(cached);
+		when(fhirObservationService.get(Matchers.anyCollectionOf(String.class)))
+		        .thenReturn(Collections.singletonList(observation("obs-vl")));
+
+		List<IBaseResource> labResources = new ArrayList<>(Arrays.asList(task, viralLoad));
+		bundleFactory.addSupportingInfo(task, labResources);
+
+		// only the Obs that wasn't cached is loaded, and then cached
+		verify(fhirObservationService).get(Collections.singleton("obs-vl"));
+		verify(supportingInfoCache).putObservation(Matchers.any(Observation.class));
+
+		assertThat(hasDisaCode(labResources, "obs-regimen", "CTREA"), is(true));
+		assertThat(cachedRegimen.getCode().getCoding(), hasSize(1));
+	}
+
+	private static ServiceRequest serviceRequest(String id, String... supportingInfo) {
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setId(id);
+		for (int i = 0; i < supportingInfo.length; i += 2) {
+			serviceRequest.addSupportingInfo(new Reference("Observation/" + supportingInfo[i]).setType("Observation")
+			        .setDisplay(supportingInfo[i + 1]));
+		}
+		return serviceRequest;
+	}
+
+	private static Observation observation(String id) {
+		Observation observation = new Observation();
+		observation.setId(id);
+		observation.getCode().addCoding(new Coding("http://loinc.org", id, id));
+		return observation;
+	}
+
+	private static boolean hasDisaCode(List<IBaseResource> labResources, String id, String code) {
+		return labResources.stream().filter(r -> r instanceof Observation && r.getIdElement().getIdPart().equals(id))
+		        .map(r -> (Observation) r).anyMatch(o -> o.getCode().getCoding().stream()
+		                .anyMatch(c -> c.getSystem().equals("http://health.gov.ls/laboratory-services")
+		                        && c.getCode().equals(code)));
+	}
+}
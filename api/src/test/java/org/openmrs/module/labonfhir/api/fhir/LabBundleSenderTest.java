@@ -0,0 +1,136 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.StandInFhirServer;
+import org.openmrs.module.labonfhir.api.model.FailedTask;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabBundleSenderTest {
+
+	private static final int TASK_COUNT = 200;
+
+	private static final int BATCH_SIZE = 50;
+
+	private static final String FAILING_TASK_UUID = "task-bad";
+
+	private static FhirContext ctx = FhirContext.forR4();
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@Mock
+	private LabResourceFingerprints fingerprints;
+
+	private StandInFhirServer lis;
+
+	private LabBundleSender sender;
+
+	@Before
+	public void setup() throws Exception {
+		lis = new StandInFhirServer();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		sender = new LabBundleSender();
+		sender.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+		sender.setCtx(ctx);
+		sender.setLabOnFhirService(labOnFhirService);
+		sender.setFingerprints(fingerprints);
+	}
+
+	@After
+	public void tearDown() {
+		lis.close();
+	}
+
+	@Test
+	public void mergeBundles_shouldSendSharedResourcesOnce() {
+		Bundle merged = LabBundleSender.mergeBundles(Arrays.asList(labBundle("task-1"), labBundle("task-2")));
+
+		// two Tasks and two ServiceRequests, but a single Patient, Encounter and Location
+		assertThat(merged.getEntry(), hasSize(7));
+		assertThat(merged.getType(), equalTo(Bundle.BundleType.TRANSACTION));
+	}
+
+	@Test
+	public void send_shouldSendOneTransactionPerBatch() {
+		long start = System.nanoTime();
+		for (int i = 0; i < TASK_COUNT; i++) {
+			sender.send("task-" + i, labBundle("task-" + i));
+		}
+		long unbatchedNanos = System.nanoTime() - start;
+		assertThat(lis.getRequests(), hasSize(TASK_COUNT));
+
+		lis.getRequests().clear();
+		start = System.nanoTime();
+		Map<String, Bundle> batch = new LinkedHashMap<>();
+		for (int i = 0; i < TASK_COUNT; i++) {
+			batch.put("task-" + i, labBundle("task-" + i));
+			if (batch.size() == BATCH_SIZE) {
+				sender.send(batch);
+				batch = new LinkedHashMap<>();
+			}
+		}
+		long batchedNanos = System.nanoTime() - start;
+
+		assertThat(lis.getRequests(), hasSize(TASK_COUNT / BATCH_SIZE));
+		verify(labOnFhirService, never()).saveOrUpdateFailedTask(Matchers.any(FailedTask.class));
+		System.out.printf("Sent %d Tasks: %d ms unbatched, %d ms in batches of %d%n", TASK_COUNT,
+		    unbatchedNanos / 1000000, batchedNanos / 1000000, BATCH_SIZE);
+	}
+
+	@Test
+	public void send_shouldRecordFailuresPerTaskWhenBatchIsRejected() {
+		lis.setHandler(request -> new String(request.getBody(), StandardCharsets.UTF_8).contains(FAILING_TASK_UUID) ? null
+		        : StandInFhirServer.EMPTY_TRANSACTION_RESPONSE);
+
+		Map<String, Bundle> batch = new LinkedHashMap<>();
+		batch.put("task-1", labBundle("task-1"));
+		batch.put(FAILING_TASK_UUID, labBundle(FAILING_TASK_UUID));
+		batch.put("task-2", labBundle("task-2"));
+		sender.send(batch);
+
+		// the merged transaction plus one retry per Task
+		assertThat(lis.getRequests(), hasSize(4));
+		ArgumentCaptor<FailedTask> failedTask = ArgumentCaptor.forClass(FailedTask.class);
+		verify(labOnFhirService, times(1)).saveOrUpdateFailedTask(failedTask.capture());
+		assertThat(failedTask.getValue().getTaskUuid(), equalTo(FAILING_TASK_UUID));
+	}
+
+	private static Bundle labBundle(String taskUuid) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		addEntry(bundle, "Task/" + taskUuid);
+		addEntry(bundle, "ServiceRequest/order-" + taskUuid);
+		addEntry(bundle, "Patient/patient-1");
+		addEntry(bundle, "Encounter/encounter-1");
+		addEntry(bundle, "Location/location-1");
+		return bundle;
+	}
+
+	private static void addEntry(Bundle bundle, String url) {
+		bundle.addEntry().getRequest().setUrl(url).setMethod(Bundle.HTTPVerb.PUT);
+	}
+}
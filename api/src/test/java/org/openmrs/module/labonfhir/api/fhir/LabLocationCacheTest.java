@@ -0,0 +1,85 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Location;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.api.FhirLocationService;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabLocationCacheTest {
+
+	@Mock
+	private FhirLocationService fhirLocationService;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@InjectMocks
+	private LabLocationCache cache;
+
+	@Test
+	public void get_shouldTranslateEachLocationOnce() {
+		Location facility = location("facility-1");
+		when(fhirLocationService.get("facility-1")).thenReturn(facility);
+
+		Location first = cache.get("facility-1");
+		Location second = cache.get("facility-1");
+
+		verify(fhirLocationService, times(1)).get("facility-1");
+		assertThat(first.getIdElement().getIdPart(), is("facility-1"));
+		// callers get copies, so a change to one bundle's Location can't reach the next bundle
+		assertThat(second, not(sameInstance(first)));
+		assertThat(cache.getStats().hitCount(), is(1L));
+	}
+
+	@Test
+	public void invalidate_shouldTranslateTheLocationAgain() {
+		when(fhirLocationService.get("facility-1")).thenReturn(location("facility-1"));
+
+		cache.get("facility-1");
+		cache.invalidate("facility-1");
+		cache.get("facility-1");
+
+		verify(fhirLocationService, times(2)).get("facility-1");
+	}
+
+	@Test
+	public void getForEncounter_shouldNotTranslateTheEncounter() {
+		when(labOnFhirService.getEncounterLocationUuid("encounter-1")).thenReturn("facility-1");
+		when(labOnFhirService.getEncounterLocationUuid("encounter-2")).thenReturn(null);
+		when(fhirLocationService.get("facility-1")).thenReturn(location("facility-1"));
+
+		assertThat(cache.getForEncounter("encounter-1").getIdElement().getIdPart(), is("facility-1"));
+		assertThat(cache.getForEncounter("encounter-2"), nullValue());
+		verify(fhirLocationService, times(1)).get(Matchers.anyString());
+	}
+
+	@Test(expected = ResourceNotFoundException.class)
+	public void get_shouldRethrowTheExceptionOfTheLocationService() {
+		when(fhirLocationService.get("unknown")).thenThrow(new ResourceNotFoundException("unknown"));
+
+		cache.get("unknown");
+	}
+
+	private static Location location(String id) {
+		Location location = new Location();
+		location.setId(id);
+		location.setName("Facility " + id);
+		return location;
+	}
+}
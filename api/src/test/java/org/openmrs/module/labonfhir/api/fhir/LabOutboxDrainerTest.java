@@ -0,0 +1,196 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.LabOrderHandler;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.springframework.transaction.UnexpectedRollbackException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabOutboxDrainerTest {
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@Mock
+	private FhirTaskService fhirTaskService;
+
+	@Mock
+	private LabBundleSender sender;
+
+	@Mock
+	private LabBundleFactory bundleFactory;
+
+	@Mock
+	private LabOrderHandler handler;
+
+	@InjectMocks
+	private LabOutboxDrainer drainer;
+
+	@Test
+	public void drain_shouldSendClaimedTasksAndDeleteTheirEntries() {
+		List<LabOutboxEntry> entries = Arrays.asList(entry(1, "task-1"), entry(2, "task-2"));
+		when(labOnFhirService.claimOutboxEntries(anyString(), eq(10), any(Date.class), any(Date.class)))
+		        .thenReturn(entries);
+		Bundle bundle1 = taskBundle("task-1");
+		Bundle bundle2 = taskBundle("task-2");
+		when(bundleFactory.createLabBundle(any(Task.class), anyBoolean())).thenReturn(bundle1, bundle2);
+
+		assertThat(drainer.drain(10), is(2));
+
+		ArgumentCaptor<Map> sent = ArgumentCaptor.forClass(Map.class);
+		verify(sender).send(sent.capture());
+		assertThat(sent.getValue().keySet(), contains("task-1", "task-2"));
+		verify(labOnFhirService).deleteOutboxEntries(Arrays.asList(1, 2));
+		assertThat(drainer.getSentCount(), is(2L));
+	}
+
+	@Test
+	public void drain_shouldKeepEntriesWhoseBundleCouldNotBeBuilt() {
+		LabOutboxEntry entry = entry(1, "task-missing");
+		when(fhirTaskService.get("task-missing")).thenThrow(new ResourceNotFoundException("Task/task-missing"));
+		when(labOnFhirService.claimOutboxEntries(anyString(), anyInt(), any(Date.class), any(Date.class)))
+		        .thenReturn(Collections.singletonList(entry));
+
+		drainer.drain(1);
+
+		// not claimed again until the backoff of its first attempt has passed
+		ArgumentCaptor<Date> claimedAt = ArgumentCaptor.forClass(Date.class);
+		verify(labOnFhirService).claimOutboxEntries(anyString(), anyInt(), claimedAt.capture(), any(Date.class));
+		verify(labOnFhirService).releaseOutboxEntry(eq(1), anyString(),
+		    eq(new Date(claimedAt.getValue().getTime() + LabOutboxDrainer.RETRY_BACKOFF_MILLIS)));
+		verify(labOnFhirService).deleteOutboxEntries(Collections.<Integer> emptyList());
+		verify(sender, never()).saveFailedTask(anyString(), anyString());
+	}
+
+	@Test
+	public void drain_shouldDoNothingWhenTheOutboxIsEmpty() {
+		when(labOnFhirService.claimOutboxEntries(anyString(), anyInt(), any(Date.class), any(Date.class)))
+		        .thenReturn(Collections.<LabOutboxEntry> emptyList());
+
+		assertThat(drainer.drain(5), is(0));
+
+		verify(sender, never()).send(any(Map.class));
+		verify(labOnFhirService, never()).deleteOutboxEntries(any(Collection.class));
+	}
+
+	@Test
+	public void drain_shouldCreateOneTaskForTheWaitingOrdersOfAnEncounter() throws Exception {
+		LabOutboxEntry viralLoad = orderEntry(1, "order-vl", "encounter-1", 1);
+		LabOutboxEntry cd4 = orderEntry(2, "order-cd4", "encounter-1", 1);
+		LabOutboxEntry otherEncounter = orderEntry(3, "order-other", "encounter-2", 1);
+		when(labOnFhirService.claimOutboxEntries(anyString(), anyInt(), any(Date.class), any(Date.class)))
+		        .thenReturn(Arrays.asList(viralLoad, otherEncounter, cd4));
+
+		assertThat(drainer.drain(10), is(3));
+
+		verify(handler).createPendingOrder(Arrays.asList(viralLoad, cd4));
+		verify(handler).createPendingOrder(Collections.singletonList(otherEncounter));
+		verify(sender, never()).send(any(Map.class));
+	}
+
+	@Test
+	public void drain_shouldFallBackToATaskPerOrderWhenTheSharedTaskFails() throws Exception {
+		LabOutboxEntry viralLoad = orderEntry(1, "order-vl", "encounter-1", 1);
+		LabOutboxEntry cd4 = orderEntry(2, "order-cd4", "encounter-1", 1);
+		when(labOnFhirService.claimOutboxEntries(anyString(), anyInt(), any(Date.class), any(Date.class)))
+		        .thenReturn(Arrays.asList(viralLoad, cd4));
+		// the transaction of the shared Task was rolled back
+		when(handler.createPendingOrder(Arrays.asList(viralLoad, cd4)))
+		        .thenThrow(new UnexpectedRollbackException("rolled back"));
+		when(handler.createPendingOrder(Collections.singletonList(cd4)))
+		        .thenThrow(new OrderCreationException("rejected"));
+
+		drainer.drain(10);
+
+		// each order was tried on its own, and only the one that failed again waits for its retry
+		verify(handler).createPendingOrder(Collections.singletonList(viralLoad));
+		verify(labOnFhirService).releaseOutboxEntry(eq(2), eq("rejected"), any(Date.class));
+		verify(labOnFhirService, never()).releaseOutboxEntry(eq(1), anyString(), any(Date.class));
+		verify(sender, never()).saveFailedTask(anyString(), anyString());
+	}
+
+	@Test
+	public void drain_shouldRecordAFailedTaskForAnOrderThatKeepsFailing() throws Exception {
+		LabOutboxEntry viralLoad = orderEntry(1, "order-vl", "encounter-1", 10);
+		when(labOnFhirService.claimOutboxEntries(anyString(), anyInt(), any(Date.class), any(Date.class)))
+		        .thenReturn(Collections.singletonList(viralLoad));
+		when(handler.createPendingOrder(Collections.singletonList(viralLoad)))
+		        .thenThrow(new UnexpectedRollbackException("rolled back"));
+
+		drainer.drain(10);
+
+		ArgumentCaptor<String> error = ArgumentCaptor.forClass(String.class);
+		verify(sender).saveFailedTask(isNull(String.class), error.capture());
+		assertThat(error.getValue(), containsString("order-vl"));
+		verify(labOnFhirService).deleteOutboxEntries(Collections.singletonList(1));
+		verify(labOnFhirService, never()).releaseOutboxEntry(anyInt(), anyString(), any(Date.class));
+	}
+
+	@Test
+	public void getRetryTime_shouldDoubleTheBackoffWithEachAttemptUpToTheMaximum() {
+		Date now = new Date(0);
+
+		assertThat(LabOutboxDrainer.getRetryTime(now, 1).getTime(), is(LabOutboxDrainer.RETRY_BACKOFF_MILLIS));
+		assertThat(LabOutboxDrainer.getRetryTime(now, 2).getTime(), is(2 * LabOutboxDrainer.RETRY_BACKOFF_MILLIS));
+		assertThat(LabOutboxDrainer.getRetryTime(now, 4).getTime(), is(8 * LabOutboxDrainer.RETRY_BACKOFF_MILLIS));
+		assertThat(LabOutboxDrainer.getRetryTime(now, 9).getTime(), is(LabOutboxDrainer.MAX_RETRY_BACKOFF_MILLIS));
+		assertThat(LabOutboxDrainer.getRetryTime(now, 100).getTime(), is(LabOutboxDrainer.MAX_RETRY_BACKOFF_MILLIS));
+	}
+
+	private LabOutboxEntry entry(int id, String taskUuid) {
+		LabOutboxEntry entry = new LabOutboxEntry(taskUuid);
+		entry.setId(id);
+		entry.setAttempts(1);
+		when(fhirTaskService.get(taskUuid)).thenReturn((Task) new Task().setId(taskUuid));
+		return entry;
+	}
+
+	private static LabOutboxEntry orderEntry(int id, String orderUuid, String encounterUuid, int attempts) {
+		LabOutboxEntry entry = LabOutboxEntry.forOrder(orderUuid, encounterUuid);
+		entry.setId(id);
+		entry.setAttempts(attempts);
+		return entry;
+	}
+
+	private static Bundle taskBundle(String taskUuid) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		bundle.addEntry().setResource(new Task().setId(taskUuid)).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+		        .setUrl("Task/" + taskUuid);
+		return bundle;
+	}
+}
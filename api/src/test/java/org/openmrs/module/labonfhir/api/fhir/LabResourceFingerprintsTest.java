@@ -0,0 +1,134 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabResourceFingerprintsTest {
+
+	private static FhirContext ctx = FhirContext.forR4();
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Spy
+	private FhirContext fhirContext = ctx;
+
+	@InjectMocks
+	private LabResourceFingerprints fingerprints;
+
+	private Patient patient;
+
+	@Before
+	public void setup() {
+		when(config.isDeltaSendEnabled()).thenReturn(true);
+		patient = new Patient();
+		patient.setId("patient-1");
+		patient.addName().setFamily("Mokoena").addGiven("Lerato");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.addIdentifier().setSystem("http://health.gov.ls/art-number").setValue("ART-0001");
+	}
+
+	@Test
+	public void isUnchanged_shouldLeaveOutSharedResourcesTheLisAccepted() {
+		int fullSize = 0;
+		int deltaSize = 0;
+		for (int order = 1; order <= 3; order++) {
+			Bundle full = labBundle("task-" + order, false);
+			Bundle delta = labBundle("task-" + order, true);
+			fullSize += size(full);
+			deltaSize += size(delta);
+
+			if (order == 1) {
+				assertThat(delta.getEntry().size(), is(full.getEntry().size()));
+			} else {
+				// only the Task and its ServiceRequest are left
+				assertThat(delta.getEntry().size(), is(2));
+			}
+			fingerprints.acknowledge(delta);
+		}
+
+		assertThat(fullSize - deltaSize, greaterThan(fullSize / 4));
+		assertThat(fingerprints.getResourcesLeftOut(), is(6L));
+		assertThat(fingerprints.getSizeReduction(), greaterThan(0.5));
+	}
+
+	@Test
+	public void isUnchanged_shouldSendChangedAndInvalidatedResourcesAgain() {
+		fingerprints.acknowledge(labBundle("task-1", false));
+		assertThat(fingerprints.isUnchanged(patient), is(true));
+
+		patient.getNameFirstRep().setFamily("Mokoena-Dlamini");
+		assertThat(fingerprints.isUnchanged(patient), is(false));
+
+		fingerprints.acknowledge(labBundle("task-2", false));
+		fingerprints.invalidate("Patient", "patient-1");
+		assertThat(fingerprints.isUnchanged(patient), is(false));
+	}
+
+	@Test
+	public void forgetReferences_shouldSendResourcesOfRejectedTasksAgain() {
+		Bundle bundle = labBundle("task-1", false);
+		fingerprints.acknowledge(bundle);
+
+		fingerprints.forgetReferences(bundle);
+
+		assertThat(fingerprints.isUnchanged(patient), is(false));
+	}
+
+	private Bundle labBundle(String taskId, boolean leaveOutUnchanged) {
+		Encounter encounter = new Encounter();
+		encounter.setId("encounter-1");
+		encounter.setSubject(new Reference("Patient/patient-1"));
+		encounter.addLocation().setLocation(new Reference("Location/location-1"));
+		Location location = new Location();
+		location.setId("location-1");
+		location.setName("Maseru District Hospital");
+
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setId("order-" + taskId);
+		serviceRequest.setSubject(new Reference("Patient/patient-1"));
+		Task task = new Task();
+		task.setId(taskId);
+		task.setFor(new Reference("Patient/patient-1"));
+		task.setEncounter(new Reference("Encounter/encounter-1"));
+		task.setLocation(new Reference("Location/location-1"));
+
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (Resource resource : new Resource[] { task, serviceRequest, patient, encounter, location }) {
+			if (leaveOutUnchanged && fingerprints.isUnchanged(resource)) {
+				continue;
+			}
+			bundle.addEntry().setResource(resource).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+			        .setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+		}
+		return bundle;
+	}
+
+	private static int size(Bundle bundle) {
+		return ctx.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8).length;
+	}
+}
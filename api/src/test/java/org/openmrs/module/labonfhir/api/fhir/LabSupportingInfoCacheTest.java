@@ -0,0 +1,68 @@
+package org.openmrs.module.labonfhir.api.fhir;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabSupportingInfoCacheTest {
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@InjectMocks
+	private LabSupportingInfoCache cache;
+
+	@Before
+	public void setup() {
+		when(config.getSupportingInfoCacheSize()).thenReturn(100);
+		when(config.getSupportingInfoCacheTtlMinutes()).thenReturn(60);
+	}
+
+	@Test
+	public void getObservations_shouldCountHitsAndMisses() {
+		cache.putObservation(observation("obs-regimen"));
+
+		assertThat(cache.getObservations(Arrays.asList("obs-regimen", "obs-cd4")).keySet(),
+		    is(Collections.singleton("obs-regimen")));
+		assertThat(cache.getObservationStats().hitCount(), is(1L));
+		assertThat(cache.getObservationStats().missCount(), is(1L));
+	}
+
+	@Test
+	public void invalidateObservation_shouldEvictTheDiagnosticReportOfAResult() {
+		DiagnosticReport report = new DiagnosticReport();
+		report.setId("report-1");
+		List<IBaseResource> reportWithResults = Arrays.asList(report, observation("obs-vl-result"));
+		cache.putDiagnosticReport("report-1", reportWithResults);
+		cache.putObservation(observation("obs-vl-result"));
+
+		cache.invalidateObservation("obs-vl-result");
+
+		assertThat(cache.getObservations(Collections.singleton("obs-vl-result")), not(hasKey("obs-vl-result")));
+		assertThat(cache.getDiagnosticReports(Collections.singleton("report-1")), not(hasKey("report-1")));
+	}
+
+	private static Observation observation(String id) {
+		Observation observation = new Observation();
+		observation.setId(id);
+		return observation;
+	}
+}
@@ -1,25 +1,74 @@
 package org.openmrs.module.labonfhir.api.scheduler;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Task;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fhir2.api.FhirObservationService;
 import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.StandInFhirServer;
+import org.openmrs.module.labonfhir.api.LabOrderManager;
+import org.openmrs.module.labonfhir.api.LabWorkerPool;
+import org.openmrs.module.labonfhir.api.model.LabPollCheckpoint;
+import org.openmrs.module.labonfhir.api.model.TaskRequest;
+import org.openmrs.module.labonfhir.api.model.TaskResults;
+import org.openmrs.module.labonfhir.api.model.TaskUpdateSummary;
+import org.openmrs.module.labonfhir.api.service.LabOnFhirService;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -30,6 +79,48 @@ public class FetchTaskUpdatesTest {
 
 	private static final String OPENELIS_TASK_UUID = "55fdc8ad-fe4d-499b-93a8-8a991c1d4788";
 
+	private static final int TASK_COUNT = 10000;
+
+	private static final int PAGE_SIZE = 100;
+
+	private static final int PREFETCH_DEPTH = 2;
+
+	private static final String VIRAL_LOAD_LOINC = "20447-9";
+
+	private static final long FIRST_LAST_UPDATED = 1767225600000L;
+
+	private static final int BACKFILL_PARALLELISM = 3;
+
+	/**
+	 * a Task every six hours from 2021 to 2026, 1826 days
+	 */
+	private static final int BACKFILL_TASK_COUNT = 1826 * 4;
+
+	/**
+	 * 1826 days in slices of 30 days
+	 */
+	private static final int BACKFILL_SLICE_COUNT = 61;
+
+	private final int[] servedByRequest = new int[TASK_COUNT];
+
+	private final int[] requestsWhenProcessed = new int[TASK_COUNT];
+
+	private final int[] timesProcessed = new int[TASK_COUNT];
+
+	private int processedTaskCount;
+
+	private long firstLastUpdated = FIRST_LAST_UPDATED;
+
+	private long lastUpdatedIntervalMillis = 1000;
+
+	private int taskCount = TASK_COUNT;
+
+	private final AtomicInteger maxRequestsInFlight = new AtomicInteger();
+
+	private LabPollCheckpoint backfilledCheckpoint;
+
+	private int pagesProcessed;
+
 
 	private FetchTaskUpdates updateTask;
 
@@ -39,11 +130,693 @@ public class FetchTaskUpdatesTest {
 	@Mock
 	private FhirTaskService taskService;
 
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private LabOnFhirService labOnFhirService;
+
+	@Mock
+	private FhirObservationService observationService;
+
+	@Mock
+	private SessionFactory sessionFactory;
+
+	@Mock
+	private LabOrderManager labOrderManager;
+
+	@Mock
+	private LabWorkerPool resultWorkers;
+
+	@Mock
+	private Session session;
+
 	@Before
 	public void setup() {
 		updateTask = new FetchTaskUpdates();
 
 		updateTask.setTaskService(taskService);
+		updateTask.setSessionFactory(sessionFactory);
+		updateTask.setConfig(config);
+		updateTask.setLabOnFhirService(labOnFhirService);
+		updateTask.setObservationService(observationService);
+		when(sessionFactory.getCurrentSession()).thenReturn(session);
+	}
+
+	@Test
+	public void fetchTaskUpdates_shouldProcessEachPageBeforeFetchingTheNext() throws Exception {
+		fetchAllTaskUpdates(1, new LabPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+
+		// without prefetch no page is fetched before the previous one was processed, so one page is held at a time
+		for (int task = 0; task < TASK_COUNT; task++) {
+			assertThat(requestsWhenProcessed[task], equalTo(servedByRequest[task]));
+			assertThat(timesProcessed[task], equalTo(1));
+		}
+	}
+
+	@Test
+	public void fetchTaskUpdates_shouldPrefetchAtMostTheConfiguredNumberOfPages() throws Exception {
+		when(config.getTaskUpdatePrefetchDepth()).thenReturn(PREFETCH_DEPTH);
+
+		fetchAllTaskUpdates(1, new LabPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+
+		// the pages on the queue, plus the one the prefetcher is waiting to put on it
+		for (int task = 0; task < TASK_COUNT; task++) {
+			assertThat(requestsWhenProcessed[task], lessThanOrEqualTo(servedByRequest[task] + PREFETCH_DEPTH + 1));
+			assertThat(timesProcessed[task], equalTo(1));
+		}
+		assertThat(updateTask.getLastPollDurationMillis(), greaterThan(0L));
+	}
+
+	@Test
+	public void fetchTaskUpdates_shouldSearchFromTheLastTaskOfEachPage() throws Exception {
+		List<StandInFhirServer.RecordedRequest> requests = fetchAllTaskUpdates(1,
+		    new LabPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+
+		// no request pages by offset, each starts at the lastUpdated of the last Task processed
+		for (StandInFhirServer.RecordedRequest request : requests) {
+			assertThat(request.getUri(), not(containsString("_getpagesoffset")));
+		}
+		assertThat(URLDecoder.decode(requests.get(1).getUri(), "UTF-8"),
+		    containsString("_lastUpdated=ge" + lastUpdated(PAGE_SIZE - 1)));
+	}
+
+	@Test
+	public void fetchTaskUpdates_shouldFollowTheNextLinkWhenPagesShareALastUpdated() throws Exception {
+		// more Tasks with one lastUpdated than fit a page
+		fetchAllTaskUpdates(PAGE_SIZE * 5 / 2, new LabPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+
+		for (int task = 0; task < TASK_COUNT; task++) {
+			assertThat(timesProcessed[task], equalTo(1));
+		}
+	}
+
+	@Test
+	public void fetchTaskUpdates_shouldResumeFromTheCheckpoint() throws Exception {
+		int lastProcessed = TASK_COUNT / 2 - 1;
+		LabPollCheckpoint checkpoint = new LabPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT);
+		checkpoint.setLastUpdated(lastUpdated(lastProcessed));
+		checkpoint.setLastResourceId("lis-task-" + lastProcessed);
+
+		fetchAllTaskUpdates(1, checkpoint);
+
+		assertThat(processedTaskCount, equalTo(TASK_COUNT - lastProcessed - 1));
+		for (int task = 0; task < TASK_COUNT; task++) {
+			assertThat(timesProcessed[task], equalTo(task > lastProcessed ? 1 : 0));
+		}
+		// saved after every page, and at the last Task once done
+		verify(labOnFhirService, times(pagesProcessed)).savePollCheckpoint(checkpoint);
+		assertThat(checkpoint.getLastResourceId(), equalTo("lis-task-" + (TASK_COUNT - 1)));
+		assertThat(checkpoint.getLastUpdated(), equalTo(lastUpdated(TASK_COUNT - 1)));
+	}
+
+	@Test
+	public void poll_shouldOnlyReadTheLastTaskRequestUntilThereIsACheckpoint() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		TaskRequest lastRequest = new TaskRequest();
+		lastRequest.setRequestDate(new Date(FIRST_LAST_UPDATED));
+		when(labOnFhirService.getLastTaskRequest()).thenReturn(lastRequest);
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> "{\"resourceType\":\"Bundle\",\"type\":\"searchset\"}");
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.poll();
+
+			ArgumentCaptor<LabPollCheckpoint> saved = ArgumentCaptor.forClass(LabPollCheckpoint.class);
+			verify(labOnFhirService).savePollCheckpoint(saved.capture());
+			LabPollCheckpoint checkpoint = saved.getValue();
+			assertThat(checkpoint.getName(), equalTo(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+			assertThat(checkpoint.getLastUpdated(), notNullValue());
+
+			when(labOnFhirService.getPollCheckpoint(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT)).thenReturn(checkpoint);
+			updateTask.poll();
+			updateTask.poll();
+		}
+
+		verify(labOnFhirService, times(1)).getLastTaskRequest();
+		verify(labOnFhirService, never()).saveOrUpdateTaskRequest(Matchers.any(TaskRequest.class));
+	}
+
+	@Test
+	public void backfill_shouldFetchTheSlicesOfTheWindowAtOnce() throws Exception {
+		LabPollCheckpoint backfillCheckpoint = new LabPollCheckpoint(FetchTaskUpdates.BACKFILL_CHECKPOINT);
+		backfillCheckpoint.setLastUpdated("2026-01-01T00:00:00.000Z");
+
+		backfillAllTasks(backfillCheckpoint);
+
+		for (int task = 0; task < BACKFILL_TASK_COUNT; task++) {
+			assertThat(timesProcessed[task], equalTo(1));
+		}
+		assertThat(maxRequestsInFlight.get(), greaterThan(1));
+		assertThat(maxRequestsInFlight.get(), lessThanOrEqualTo(BACKFILL_PARALLELISM));
+
+		// every slice is done, and polling goes on from the end of the window
+		ArgumentCaptor<LabPollCheckpoint> saved = ArgumentCaptor.forClass(LabPollCheckpoint.class);
+		verify(labOnFhirService, atLeastOnce()).savePollCheckpoint(saved.capture());
+		assertThat(saved.getAllValues().stream().filter(checkpoint -> checkpoint.getName().startsWith("backfill-")
+		        && checkpoint.getCompleted()).map(LabPollCheckpoint::getName).distinct().count(),
+		    equalTo((long) BACKFILL_SLICE_COUNT));
+		assertThat(backfillCheckpoint.getCompleted(), equalTo(true));
+		assertThat(backfilledCheckpoint.getName(), equalTo(FetchTaskUpdates.TASK_UPDATES_CHECKPOINT));
+		assertThat(backfilledCheckpoint.getLastUpdated(), equalTo("2026-01-01T00:00:00.000Z"));
+	}
+
+	@Test
+	public void backfill_shouldOnlyFetchTheSlicesThatAreNotDone() throws Exception {
+		LabPollCheckpoint backfillCheckpoint = new LabPollCheckpoint(FetchTaskUpdates.BACKFILL_CHECKPOINT);
+		backfillCheckpoint.setLastUpdated("2026-01-01T00:00:00.000Z");
+		LabPollCheckpoint firstSlice = new LabPollCheckpoint("backfill-20210101000000");
+		firstSlice.setLastUpdated("2021-01-01T00:00:00.000Z");
+		firstSlice.setCompleted(true);
+		when(labOnFhirService.getPollCheckpoint("backfill-20210101000000")).thenReturn(firstSlice);
+
+		List<StandInFhirServer.RecordedRequest> requests = backfillAllTasks(backfillCheckpoint);
+
+		// the first slice is the first 30 days of Tasks, four a day
+		for (int task = 0; task < BACKFILL_TASK_COUNT; task++) {
+			assertThat(timesProcessed[task], equalTo(task < 30 * 4 ? 0 : 1));
+		}
+		for (StandInFhirServer.RecordedRequest request : requests) {
+			assertThat(URLDecoder.decode(request.getUri(), "UTF-8"), not(containsString("2021-01-01")));
+		}
+		assertThat(backfilledCheckpoint, notNullValue());
+	}
+
+	@Test
+	public void fetchDiagnosticReports_shouldFetchTheReportsOfAPageInChunks() throws Exception {
+		when(config.getDiagnosticReportFetchSize()).thenReturn(2);
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			Map<String, Bundle> diagnosticReports = updateTask
+			        .fetchDiagnosticReports(Arrays.asList("report-1", "report-2", "report-3", "report-4", "report-5"));
+
+			// one search per two reports rather than one per report
+			assertThat(lis.getRequests(), hasSize(3));
+			assertThat(diagnosticReports.keySet(),
+			    containsInAnyOrder("report-1", "report-2", "report-3", "report-4", "report-5"));
+			Bundle report3 = diagnosticReports.get("report-3");
+			assertThat(report3.getEntry(), hasSize(2));
+			assertThat(report3.getEntryFirstRep().getResource().getIdElement().getIdPart(), equalTo("report-3"));
+			assertThat(report3.getEntry().get(1).getResource().getIdElement().getIdPart(), equalTo("result-report-3"));
+		}
+	}
+
+	@Test
+	public void updateTasksInBundle_shouldOnlySaveTheReportsThatAreNotInOpenmrs() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(lisTask("report-1").addIdentifier(new Identifier().setValue("task-done")));
+		taskPage.addEntry().setResource(lisTask("report-2").addIdentifier(new Identifier().setValue("task-new")));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Arrays.asList(
+		            new TaskUpdateSummary("task-done", "encounter-1", Collections.singletonList("ServiceRequest/order-1"),
+		                    Collections.singleton(VIRAL_LOAD_LOINC)),
+		            new TaskUpdateSummary("task-new", "encounter-2", Collections.singletonList("ServiceRequest/order-2"),
+		                    Collections.emptySet())));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+		}
+
+		List<TaskResults> saved = savedTaskResults(2);
+		// the report saved before there was a ledger is only recorded in it
+		assertThat(saved.get(0).getTaskUuid(), equalTo("task-done"));
+		assertThat(saved.get(0).getLisReferences(), contains("DiagnosticReport/report-1"));
+		assertThat(saved.get(0).getReports(), hasSize(0));
+		assertThat(saved.get(1).getTaskUuid(), equalTo("task-new"));
+		assertThat(saved.get(1).getLisReferences(), contains("DiagnosticReport/report-2"));
+		assertThat(saved.get(1).getReports(), hasSize(1));
+		Observation result = saved.get(1).getReports().get(0).getObservations().get(0);
+		assertThat(result.getEncounter().getReference(), equalTo("Encounter/encounter-2"));
+		assertThat(result.getBasedOnFirstRep().getReference(), equalTo("ServiceRequest/order-2"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void updateTasksInBundle_shouldSkipWhatTheLedgerHoldsBeforeFetchingIt() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		Task seenTask = lisTask("report-1").addIdentifier(new Identifier().setValue("task-seen"));
+		seenTask.setId("lis-task-1");
+		seenTask.getMeta().setVersionId("2");
+		Task updatedTask = lisTask("report-1", "report-2").addIdentifier(new Identifier().setValue("task-updated"));
+		updatedTask.setId("lis-task-2");
+		updatedTask.getMeta().setVersionId("3");
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(seenTask);
+		taskPage.addEntry().setResource(updatedTask);
+
+		when(labOnFhirService.getImportedLisReferences(Matchers.anyCollectionOf(String.class)))
+		        .thenReturn(Arrays.asList("Task/lis-task-1/_history/2", "DiagnosticReport/report-1"));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Collections.singletonList(new TaskUpdateSummary("task-updated", "encounter-1",
+		                Collections.singletonList("ServiceRequest/order-1"), Collections.emptySet())));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+
+			// the Task version seen before isn't looked up, and only the report that wasn't imported is fetched
+			ArgumentCaptor<Collection> taskUuids = ArgumentCaptor.forClass(Collection.class);
+			verify(labOnFhirService).getTaskUpdateSummaries(taskUuids.capture(), Matchers.anyString());
+			assertThat((Collection<String>) taskUuids.getValue(), contains("task-updated"));
+			assertThat(lis.getRequests(), hasSize(1));
+			String search = URLDecoder.decode(lis.getRequests().get(0).getUri(), "UTF-8");
+			assertThat(search, containsString("_id=report-2"));
+			assertThat(search, not(containsString("report-1")));
+		}
+
+		// the new report and the Task version are recorded along with the report's results
+		TaskResults saved = savedTaskResults(1).get(0);
+		assertThat(saved.getLisReferences(), contains("DiagnosticReport/report-2", "Task/lis-task-2/_history/3"));
+		assertThat(saved.getReports(), hasSize(1));
+		assertThat(saved.getReports().get(0).getDiagnosticReport().getIdElement().getIdPart(), equalTo("report-2"));
+	}
+
+	@Test
+	public void updateTasksInBundle_shouldLeaveTheResultsAnotherPollClaimedToIt() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(lisTask("report-1").addIdentifier(new Identifier().setValue("task-1")));
+		taskPage.addEntry().setResource(lisTask("report-2").addIdentifier(new Identifier().setValue("task-2")));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Arrays.asList(summary("task-1"), summary("task-2")));
+		// the ledger's unique reference rolls back everything of the first Task
+		doThrow(new DataIntegrityViolationException("lab_result_import_lis_reference_uk")).when(labOnFhirService)
+		        .saveTaskResults(Matchers.argThat(new ArgumentMatcher<TaskResults>() {
+
+			        @Override
+			        public boolean matches(Object taskResults) {
+				        return "task-1".equals(((TaskResults) taskResults).getTaskUuid());
+			        }
+		        }));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+		}
+
+		// the other Task of the page is still saved
+		List<TaskResults> saved = savedTaskResults(2);
+		assertThat(saved.get(1).getTaskUuid(), equalTo("task-2"));
+		verify(session).clear();
+	}
+
+	@Test
+	public void updateTasksInBundle_shouldSaveTheResultsOfDifferentTasksAtOnce() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		ExecutorService workers = Executors.newFixedThreadPool(3);
+		when(labOrderManager.getResultWorkers()).thenReturn(resultWorkers);
+		when(resultWorkers.isRunning()).thenReturn(true);
+		when(resultWorkers.submit(Matchers.any(Runnable.class))).thenAnswer(invocation -> {
+			workers.execute((Runnable) invocation.getArguments()[0]);
+			return true;
+		});
+		updateTask.setLabOrderManager(labOrderManager);
+
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(lisTask("report-1").addIdentifier(new Identifier().setValue("task-1")));
+		taskPage.addEntry().setResource(lisTask("report-2").addIdentifier(new Identifier().setValue("task-2")));
+		taskPage.addEntry().setResource(lisTask("report-3").addIdentifier(new Identifier().setValue("task-3")));
+		// a later LIS Task for the first OpenMRS Task
+		taskPage.addEntry().setResource(lisTask("report-4").addIdentifier(new Identifier().setValue("task-1")));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Arrays.asList(summary("task-1"), summary("task-2"), summary("task-3")));
+
+		// the first LIS Task of each OpenMRS Task is only saved once all three are being saved
+		CyclicBarrier allSaving = new CyclicBarrier(3);
+		AtomicInteger saved = new AtomicInteger();
+		List<String> firstTaskReports = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			TaskResults taskResults = (TaskResults) invocation.getArguments()[0];
+			if (saved.incrementAndGet() <= 3) {
+				allSaving.await(5, TimeUnit.SECONDS);
+			}
+			if (taskResults.getTaskUuid().equals("task-1")) {
+				firstTaskReports.add(Thread.currentThread().getName() + " "
+				        + taskResults.getReports().get(0).getDiagnosticReport().getIdElement().getIdPart());
+			}
+			return null;
+		}).when(labOnFhirService).saveTaskResults(Matchers.any(TaskResults.class));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		verify(resultWorkers, times(3)).submit(Matchers.any(Runnable.class));
+		verify(labOnFhirService, times(4)).saveTaskResults(Matchers.any(TaskResults.class));
+		// the LIS Tasks of one OpenMRS Task are saved in page order, by the same worker
+		assertThat(firstTaskReports, hasSize(2));
+		String worker = firstTaskReports.get(0).split(" ")[0];
+		assertThat(firstTaskReports, contains(worker + " report-1", worker + " report-4"));
+	}
+
+	@Test
+	public void updateTasksInBundle_shouldFailThePageWhenItsResultsAreNotSavedInTime() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		// a worker starts on task-1, whose save outlasts the page, and no worker gets to task-2
+		ExecutorService worker = Executors.newSingleThreadExecutor();
+		List<Runnable> submitted = new ArrayList<>();
+		when(labOrderManager.getResultWorkers()).thenReturn(resultWorkers);
+		when(resultWorkers.isRunning()).thenReturn(true);
+		doAnswer(invocation -> {
+			Runnable work = (Runnable) invocation.getArguments()[0];
+			if (submitted.isEmpty()) {
+				worker.execute(work);
+			}
+			submitted.add(work);
+			return true;
+		}).when(resultWorkers).submit(Matchers.any(Runnable.class));
+		updateTask.setLabOrderManager(labOrderManager);
+		updateTask.setPageSaveTimeoutMillis(100);
+
+		AtomicInteger savesDone = new AtomicInteger();
+		doAnswer(invocation -> {
+			Thread.sleep(300);
+			savesDone.incrementAndGet();
+			return null;
+		}).when(labOnFhirService).saveTaskResults(Matchers.any(TaskResults.class));
+
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(lisTask("report-1").addIdentifier(new Identifier().setValue("task-1")));
+		taskPage.addEntry().setResource(lisTask("report-2").addIdentifier(new Identifier().setValue("task-2")));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Arrays.asList(summary("task-1"), summary("task-2")));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+			fail("the page should have failed, so its checkpoint isn't saved");
+		}
+		catch (APIException e) {
+			assertThat(e.getMessage(), containsString("2 OpenMRS Tasks are left"));
+			// the lock is only released once the save that was under way is done
+			assertThat(savesDone.get(), equalTo(1));
+		}
+		finally {
+			worker.shutdownNow();
+		}
+
+		// a worker getting to the withdrawn work later leaves task-2 to the next poll
+		assertThat(submitted, hasSize(2));
+		submitted.get(1).run();
+		verify(labOnFhirService, times(1)).saveTaskResults(Matchers.any(TaskResults.class));
+	}
+
+	@Test
+	public void updateTasksInBundle_shouldSaveTheObservationsOfAReportAtOnce() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		Bundle taskPage = new Bundle();
+		taskPage.addEntry().setResource(lisTask("report-1").addIdentifier(new Identifier().setValue("task-1")));
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Collections.singletonList(summary("task-1")));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			// a viral load report with three results
+			lis.setHandler(request -> "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+			        + "{\"resource\":{\"resourceType\":\"DiagnosticReport\",\"id\":\"report-1\",\"status\":\"final\","
+			        + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"" + VIRAL_LOAD_LOINC + "\"}]},"
+			        + "\"result\":[{\"reference\":\"Observation/copies\"},{\"reference\":\"Observation/log\"},"
+			        + "{\"reference\":\"Observation/detectable\"}]}}," + includedObservation("copies") + ","
+			        + includedObservation("log") + "," + includedObservation("detectable") + "]}");
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			updateTask.updateTasksInBundle(taskPage);
+		}
+
+		// one save for the report and its results, rather than one create per Observation
+		verify(observationService, never()).create(Matchers.any(Observation.class));
+		TaskResults.Report report = savedTaskResults(1).get(0).getReports().get(0);
+		assertThat(report.getDiagnosticReport().getIdElement().getIdPart(), equalTo("report-1"));
+		assertThat(report.getDiagnosticReport().getEncounter().getReference(), equalTo("Encounter/encounter-task-1"));
+		assertThat(report.getObservations(), hasSize(3));
+		for (Observation observation : report.getObservations()) {
+			assertThat(observation.getEncounter().getReference(), equalTo("Encounter/encounter-task-1"));
+		}
+	}
+
+	private static String includedObservation(String id) {
+		return "{\"resource\":{\"resourceType\":\"Observation\",\"id\":\"" + id
+		        + "\",\"status\":\"final\",\"code\":{\"text\":\"VL\"}},\"search\":{\"mode\":\"include\"}}";
+	}
+
+	@Test
+	public void importTasks_shouldOnlyImportTheNotifiedTasksTheLisReturnsAsCompleted() throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		when(config.getTaskUpdatePageSize()).thenReturn(PAGE_SIZE);
+		when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+		        .thenReturn(Collections.singletonList(summary("task-1")));
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			// lis-task-2 was notified, but isn't a completed Task of this instance
+			lis.setHandler(request -> request.getUri().contains("/Task?")
+			        ? "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[{\"resource\":"
+			                + "{\"resourceType\":\"Task\",\"id\":\"lis-task-1\",\"meta\":{\"versionId\":\"2\"},"
+			                + "\"identifier\":[{\"value\":\"task-1\"}],\"status\":\"completed\",\"intent\":\"order\","
+			                + "\"output\":[{\"type\":{\"text\":\"result\"},"
+			                + "\"valueReference\":{\"reference\":\"DiagnosticReport/report-1\"}}]}}]}"
+			        : diagnosticReports(request.getUri()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			assertThat(updateTask.importTasks(Arrays.asList("lis-task-1", "lis-task-2")), equalTo(1));
+
+			String taskSearch = URLDecoder.decode(lis.getRequests().get(0).getUri(), "UTF-8");
+			assertThat(taskSearch, containsString("_id=lis-task-1,lis-task-2"));
+			assertThat(taskSearch, containsString("status=completed"));
+			assertThat(taskSearch, containsString("identifier="));
+		}
+
+		TaskResults saved = savedTaskResults(1).get(0);
+		assertThat(saved.getTaskUuid(), equalTo("task-1"));
+		assertThat(saved.getStatus(), equalTo(Task.TaskStatus.COMPLETED));
+		assertThat(saved.getLisReferences(), contains("DiagnosticReport/report-1", "Task/lis-task-1/_history/2"));
+		verify(session, atLeastOnce()).clear();
+	}
+
+	/**
+	 * @return the results saved for the LIS Tasks, in the order they were saved
+	 */
+	private List<TaskResults> savedTaskResults(int count) {
+		ArgumentCaptor<TaskResults> taskResults = ArgumentCaptor.forClass(TaskResults.class);
+		verify(labOnFhirService, times(count)).saveTaskResults(taskResults.capture());
+		return taskResults.getAllValues();
+	}
+
+	private static TaskUpdateSummary summary(String taskUuid) {
+		return new TaskUpdateSummary(taskUuid, "encounter-" + taskUuid,
+		        Collections.singletonList("ServiceRequest/order-" + taskUuid), Collections.emptySet());
+	}
+
+	private static Task lisTask(String... diagnosticReportIds) {
+		Task task = new Task();
+		for (String diagnosticReportId : diagnosticReportIds) {
+			task.addOutput().setValue(new Reference("DiagnosticReport/" + diagnosticReportId));
+		}
+		return task;
+	}
+
+	/**
+	 * Answers a DiagnosticReport _id search with each report and its single result Observation
+	 */
+	private static String diagnosticReports(String uri) throws IOException {
+		Matcher idParam = Pattern.compile("_id=([^&]+)").matcher(URLDecoder.decode(uri, "UTF-8"));
+		StringBuilder searchset = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[");
+		if (idParam.find()) {
+			String[] ids = idParam.group(1).split(",");
+			for (int i = 0; i < ids.length; i++) {
+				if (i > 0) {
+					searchset.append(',');
+				}
+				searchset.append("{\"resource\":{\"resourceType\":\"DiagnosticReport\",\"id\":\"").append(ids[i])
+				        .append("\",\"status\":\"final\",\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",")
+				        .append("\"code\":\"").append(VIRAL_LOAD_LOINC).append("\"}]},\"result\":[{\"reference\":")
+				        .append("\"Observation/result-").append(ids[i]).append("\"}]}},")
+				        .append("{\"resource\":{\"resourceType\":\"Observation\",\"id\":\"result-").append(ids[i])
+				        .append("\",\"status\":\"final\",\"code\":{\"text\":\"VL\"}},\"search\":{\"mode\":\"include\"}}");
+			}
+		}
+		return searchset.append("]}").toString();
+	}
+
+	/**
+	 * Lets the task fetch {@link #TASK_COUNT} completed Tasks from a stand-in LIS, recording for each Task the request
+	 * that first served it, the number of requests served when it was processed, and how often it was processed
+	 *
+	 * @return the requests the LIS got
+	 */
+	private List<StandInFhirServer.RecordedRequest> fetchAllTaskUpdates(int tasksPerLastUpdated,
+	        LabPollCheckpoint checkpoint) throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		when(config.getTaskUpdatePageSize()).thenReturn(PAGE_SIZE);
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> taskPage(lis.getBaseUrl(), request.getUri(), tasksPerLastUpdated,
+			    lis.getRequests().size()));
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+			        .thenAnswer(invocation -> {
+				        for (Object taskUuid : (Collection<?>) invocation.getArguments()[0]) {
+					        int task = Integer.parseInt(((String) taskUuid).substring("task-".length()));
+					        requestsWhenProcessed[task] = lis.getRequests().size();
+					        timesProcessed[task]++;
+				        }
+				        pagesProcessed++;
+				        // saving takes a while, so the prefetcher can get ahead
+				        Thread.sleep(1);
+				        return Collections.emptyList();
+			        });
+
+			processedTaskCount = updateTask.fetchTaskUpdates(checkpoint);
+
+			assertThat(processedTaskCount, equalTo(Arrays.stream(timesProcessed).sum()));
+			verify(session, times(pagesProcessed)).clear();
+			return new ArrayList<>(lis.getRequests());
+		}
+	}
+
+	private String lastUpdated(int task) {
+		return lastUpdated(task, 1);
+	}
+
+	private String lastUpdated(int task, int tasksPerLastUpdated) {
+		InstantType lastUpdated = new InstantType(
+		        new Date(firstLastUpdated + lastUpdatedIntervalMillis * (task / tasksPerLastUpdated)));
+		lastUpdated.setTimeZoneZulu(true);
+		return lastUpdated.getValueAsString();
+	}
+
+	/**
+	 * @return the first Task updated at or after the instant
+	 */
+	private int firstTaskAt(String instant, int tasksPerLastUpdated) {
+		long intervals = (new InstantType(instant).getValue().getTime() - firstLastUpdated + lastUpdatedIntervalMillis - 1)
+		        / lastUpdatedIntervalMillis;
+		return (int) Math.max(0, Math.min(taskCount, intervals * tasksPerLastUpdated));
+	}
+
+	/**
+	 * Serves the completed Tasks in _lastUpdated order, {@link #PAGE_SIZE} at a time, from the first Task updated at or
+	 * after the _lastUpdated searched for, or from the offset of a next link, up to the upper bound searched for
+	 */
+	private String taskPage(String baseUrl, String uri, int tasksPerLastUpdated, int requestNumber) throws IOException {
+		String decodedUri = URLDecoder.decode(uri, "UTF-8");
+		Matcher offsetParam = Pattern.compile("_getpagesoffset=(\\d+)&_getpagesend=(\\d+)").matcher(decodedUri);
+		Matcher lowerBound = Pattern.compile("_lastUpdated=ge([^&]+)").matcher(decodedUri);
+		Matcher upperBound = Pattern.compile("_lastUpdated=lt([^&]+)").matcher(decodedUri);
+		int offset = 0;
+		int end = taskCount;
+		if (offsetParam.find()) {
+			offset = Integer.parseInt(offsetParam.group(1));
+			end = Integer.parseInt(offsetParam.group(2));
+		} else {
+			if (lowerBound.find()) {
+				offset = firstTaskAt(lowerBound.group(1), tasksPerLastUpdated);
+			}
+			if (upperBound.find()) {
+				end = firstTaskAt(upperBound.group(1), tasksPerLastUpdated);
+			}
+		}
+
+		StringBuilder page = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"link\":[");
+		if (offset + PAGE_SIZE < end) {
+			page.append("{\"relation\":\"next\",\"url\":\"").append(baseUrl)
+			        .append("?_getpages=tasks&_getpagesoffset=").append(offset + PAGE_SIZE).append("&_getpagesend=")
+			        .append(end).append("&_count=").append(PAGE_SIZE).append("\"}");
+		}
+		page.append("],\"entry\":[");
+		for (int task = offset; task < Math.min(offset + PAGE_SIZE, end); task++) {
+			if (task > offset) {
+				page.append(',');
+			}
+			if (servedByRequest[task] == 0) {
+				servedByRequest[task] = requestNumber;
+			}
+			page.append("{\"resource\":{\"resourceType\":\"Task\",\"id\":\"lis-task-").append(task)
+			        .append("\",\"meta\":{\"lastUpdated\":\"").append(lastUpdated(task, tasksPerLastUpdated))
+			        .append("\"},\"identifier\":[{\"value\":\"task-").append(task)
+			        .append("\"}],\"status\":\"completed\",\"intent\":\"order\"}}");
+		}
+		return page.append("]}").toString();
+	}
+
+	/**
+	 * Lets the task backfill the Tasks of the five years before 2026 from a stand-in LIS that takes a while to answer
+	 *
+	 * @return the requests the LIS got
+	 */
+	private List<StandInFhirServer.RecordedRequest> backfillAllTasks(LabPollCheckpoint backfillCheckpoint)
+	        throws Exception {
+		FhirContext ctx = FhirContext.forR4();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		when(config.getTaskUpdatePageSize()).thenReturn(PAGE_SIZE);
+		when(config.getBackfillParallelism()).thenReturn(BACKFILL_PARALLELISM);
+		when(config.getBackfillSliceDays()).thenReturn(30);
+		firstLastUpdated = new InstantType("2021-01-01T00:00:00.000Z").getValue().getTime();
+		lastUpdatedIntervalMillis = TimeUnit.HOURS.toMillis(6);
+		taskCount = BACKFILL_TASK_COUNT;
+		AtomicInteger requestsInFlight = new AtomicInteger();
+
+		try (StandInFhirServer lis = new StandInFhirServer()) {
+			lis.setHandler(request -> {
+				maxRequestsInFlight.accumulateAndGet(requestsInFlight.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(5);
+					return taskPage(lis.getBaseUrl(), request.getUri(), 1, lis.getRequests().size());
+				}
+				catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				finally {
+					requestsInFlight.decrementAndGet();
+				}
+			});
+			updateTask.setClient(ctx.newRestfulGenericClient(lis.getBaseUrl()));
+
+			when(labOnFhirService.getTaskUpdateSummaries(Matchers.anyCollectionOf(String.class), Matchers.anyString()))
+			        .thenAnswer(invocation -> {
+				        for (Object taskUuid : (Collection<?>) invocation.getArguments()[0]) {
+					        timesProcessed[Integer.parseInt(((String) taskUuid).substring("task-".length()))]++;
+				        }
+				        return Collections.emptyList();
+			        });
+
+			backfilledCheckpoint = updateTask.backfill(backfillCheckpoint);
+			return new ArrayList<>(lis.getRequests());
+		}
 	}
 
 	@Test
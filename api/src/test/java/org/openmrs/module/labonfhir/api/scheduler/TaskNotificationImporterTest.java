@@ -0,0 +1,144 @@
+package org.openmrs.module.labonfhir.api.scheduler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TaskNotificationImporterTest {
+
+	private static final int NOTIFIERS = 4;
+
+	private static final int TASKS_PER_NOTIFIER = 25;
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private TaskNotificationImporter.Handler handler;
+
+	@InjectMocks
+	private TaskNotificationImporter importer;
+
+	@Before
+	public void setup() {
+		importer.setRunning(true);
+		importer.setHandler(handler);
+		when(config.getSubscriptionSafetyNetMinutes()).thenReturn(60);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void importPending_shouldImportTheTasksOfAllNotificationsAtOnce() throws Exception {
+		// the LIS posts a notification per completed Task, several at once, some of them twice
+		ExecutorService lis = Executors.newFixedThreadPool(NOTIFIERS);
+		CountDownLatch posted = new CountDownLatch(NOTIFIERS);
+		List<String> expectedIds = new ArrayList<>();
+		for (int notifier = 0; notifier < NOTIFIERS; notifier++) {
+			List<String> taskIds = new ArrayList<>();
+			for (int task = 0; task < TASKS_PER_NOTIFIER; task++) {
+				taskIds.add("lis-task-" + notifier + "-" + task);
+			}
+			expectedIds.addAll(taskIds);
+			lis.execute(() -> {
+				for (String taskId : taskIds) {
+					importer.enqueue(Collections.singleton(taskId));
+					importer.enqueue(Collections.singleton(taskId));
+				}
+				posted.countDown();
+			});
+		}
+		assertThat(posted.await(10, TimeUnit.SECONDS), is(true));
+		lis.shutdown();
+		when(handler.importTasks(Matchers.anyCollectionOf(String.class))).thenReturn(expectedIds.size());
+
+		assertThat(importer.importPending(), is(expectedIds.size()));
+
+		ArgumentCaptor<Collection> imported = ArgumentCaptor.forClass(Collection.class);
+		verify(handler).importTasks(imported.capture());
+		assertThat((Collection<String>) imported.getValue(), containsInAnyOrder(expectedIds.toArray()));
+		verify(handler, never()).poll();
+
+		// the queue was emptied
+		assertThat(importer.importPending(), is(0));
+		assertThat(importer.getImportedCount(), is((long) expectedIds.size()));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void importPending_shouldPollForNotificationsWithoutTaskIds() throws Exception {
+		importer.requestPoll();
+		importer.enqueue(Arrays.asList("lis-task-1", "lis-task-2"));
+
+		importer.importPending();
+
+		verify(handler).poll();
+		ArgumentCaptor<Collection> imported = ArgumentCaptor.forClass(Collection.class);
+		verify(handler).importTasks(imported.capture());
+		assertThat((Collection<String>) imported.getValue(), contains("lis-task-1", "lis-task-2"));
+	}
+
+	@Test
+	public void isPollDue_shouldOnlyPollAsASafetyNetOnceNotificationsArrive() throws Exception {
+		assertThat(importer.isPollDue(), is(true));
+
+		importer.enqueue(Collections.singleton("lis-task-1"));
+		assertThat(importer.isPollDue(), is(true));
+		importer.pollStarted();
+		assertThat(importer.isPollDue(), is(false));
+
+		// polling at the scheduled interval again
+		when(config.getSubscriptionSafetyNetMinutes()).thenReturn(0);
+		assertThat(importer.isPollDue(), is(true));
+	}
+
+	@Test
+	public void enqueue_shouldNotQueueTasksWhileStopped() throws Exception {
+		importer.setRunning(false);
+
+		assertThat(importer.enqueue(Collections.singleton("lis-task-1")), is(false));
+		assertThat(importer.requestPoll(), is(false));
+		importer.setRunning(true);
+		importer.importPending();
+
+		verify(handler, never()).importTasks(Matchers.anyCollectionOf(String.class));
+		verify(handler, never()).poll();
+	}
+
+	@Test
+	public void importPending_shouldLeaveTheTasksToThePollWithoutAHandler() throws Exception {
+		importer.setHandler(null);
+		importer.enqueue(Collections.singleton("lis-task-1"));
+
+		assertThat(importer.importPending(), is(0));
+
+		// the queue was emptied, so the import loop doesn't spin on it
+		importer.setHandler(handler);
+		assertThat(importer.importPending(), is(0));
+		verify(handler, never()).importTasks(Matchers.anyCollectionOf(String.class));
+	}
+}
@@ -0,0 +1,154 @@
+package org.openmrs.module.labonfhir.api.service.impl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Obs;
+import org.openmrs.api.ObsService;
+import org.openmrs.module.fhir2.api.FhirDiagnosticReportService;
+import org.openmrs.module.fhir2.api.FhirTaskService;
+import org.openmrs.module.fhir2.api.translators.ObservationTranslator;
+import org.openmrs.module.labonfhir.api.dao.LabOnFhirDao;
+import org.openmrs.module.labonfhir.api.model.LabOutboxEntry;
+import org.openmrs.module.labonfhir.api.model.LabResultImport;
+import org.openmrs.module.labonfhir.api.model.TaskResults;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabOnFhirServiceImplTest {
+
+	@Mock
+	private LabOnFhirDao dao;
+
+	@Mock
+	private ObservationTranslator observationTranslator;
+
+	@Mock
+	private ObsService obsService;
+
+	@Mock
+	private FhirDiagnosticReportService diagnosticReportService;
+
+	@Mock
+	private FhirTaskService taskService;
+
+	@InjectMocks
+	private LabOnFhirServiceImpl labOnFhirService;
+
+	@Test
+	public void saveResultReport_shouldSaveTheObservationsThroughTheObsServiceBeforeTheReport() {
+		Observation copies = new Observation();
+		Observation log = new Observation();
+		Obs copiesObs = obs("obs-copies");
+		Obs logObs = obs("obs-log");
+		when(observationTranslator.toOpenmrsType(copies)).thenReturn(copiesObs);
+		when(observationTranslator.toOpenmrsType(log)).thenReturn(logObs);
+		when(obsService.saveObs(copiesObs, null)).thenReturn(copiesObs);
+		when(obsService.saveObs(logObs, null)).thenReturn(logObs);
+		DiagnosticReport diagnosticReport = new DiagnosticReport();
+		DiagnosticReport savedReport = new DiagnosticReport();
+		when(diagnosticReportService.create(diagnosticReport)).thenReturn(savedReport);
+
+		assertThat(labOnFhirService.saveResultReport(diagnosticReport, Arrays.asList(copies, log)),
+		    sameInstance(savedReport));
+
+		verify(obsService).saveObs(copiesObs, null);
+		verify(obsService).saveObs(logObs, null);
+		verify(diagnosticReportService).create(diagnosticReport);
+		List<String> results = new ArrayList<>();
+		for (Reference result : diagnosticReport.getResult()) {
+			results.add(result.getReference());
+		}
+		assertThat(results, contains("Observation/obs-copies", "Observation/obs-log"));
+	}
+
+	@Test
+	public void saveTaskResults_shouldRecordTheLedgerBeforeSavingTheResultsAndUpdatingTheTask() {
+		Observation copies = new Observation();
+		Obs copiesObs = obs("obs-copies");
+		when(observationTranslator.toOpenmrsType(copies)).thenReturn(copiesObs);
+		when(obsService.saveObs(copiesObs, null)).thenReturn(copiesObs);
+		DiagnosticReport diagnosticReport = new DiagnosticReport();
+		when(diagnosticReportService.create(diagnosticReport))
+		        .thenReturn((DiagnosticReport) new DiagnosticReport().setId("report-uuid"));
+		Task task = new Task();
+		when(taskService.get("task-1")).thenReturn(task);
+
+		TaskResults taskResults = new TaskResults("task-1", Task.TaskStatus.COMPLETED);
+		taskResults.addReport("DiagnosticReport/report-1", diagnosticReport, Collections.singletonList(copies));
+		taskResults.addLisReference("Task/lis-task-1/_history/2");
+		labOnFhirService.saveTaskResults(taskResults);
+
+		InOrder inOrder = inOrder(dao, obsService, diagnosticReportService, taskService);
+		ArgumentCaptor<LabResultImport> imports = ArgumentCaptor.forClass(LabResultImport.class);
+		inOrder.verify(dao, times(2)).saveResultImport(imports.capture());
+		inOrder.verify(obsService).saveObs(copiesObs, null);
+		inOrder.verify(diagnosticReportService).create(diagnosticReport);
+		inOrder.verify(taskService).update("task-1", task);
+		assertThat(imports.getAllValues().get(0).getLisReference(), equalTo("DiagnosticReport/report-1"));
+		assertThat(imports.getAllValues().get(1).getLisReference(), equalTo("Task/lis-task-1/_history/2"));
+		assertThat(task.getStatus(), equalTo(Task.TaskStatus.COMPLETED));
+		assertThat(task.getOutputFirstRep().getValue(), instanceOf(Reference.class));
+		assertThat(((Reference) task.getOutputFirstRep().getValue()).getReference(), equalTo("report-uuid"));
+	}
+
+	@Test
+	public void saveTaskResults_shouldOnlyLoadTheTaskWhenItGetsNewResults() {
+		TaskResults taskResults = new TaskResults("task-1", Task.TaskStatus.COMPLETED);
+		// imported before there was a ledger
+		taskResults.addLisReference("DiagnosticReport/report-1");
+
+		labOnFhirService.saveTaskResults(taskResults);
+
+		verify(dao).saveResultImport(Matchers.any(LabResultImport.class));
+		verify(taskService, never()).get(Matchers.anyString());
+	}
+
+	@Test
+	public void saveOrderOutboxEntry_shouldJoinTheWindowOfTheEncountersWaitingOrders() {
+		Date openWindowEnd = new Date(System.currentTimeMillis() + 1000);
+		Date windowEnd = new Date(System.currentTimeMillis() + 60000);
+		when(dao.getOrderWindowEnd(Matchers.eq("encounter-1"), Matchers.any(Date.class))).thenReturn(openWindowEnd);
+		when(dao.saveOrUpdateOutboxEntry(Matchers.any(LabOutboxEntry.class))).thenAnswer(invocation -> invocation
+		        .getArguments()[0]);
+
+		LabOutboxEntry joined = labOnFhirService.saveOrderOutboxEntry("order-cd4", "encounter-1", windowEnd);
+		LabOutboxEntry opened = labOnFhirService.saveOrderOutboxEntry("order-vl", "encounter-2", windowEnd);
+
+		assertThat(joined.getOrderUuid(), equalTo("order-cd4"));
+		assertThat(joined.getClaimedUntil(), equalTo(openWindowEnd));
+		assertThat(opened.getEncounterUuid(), equalTo("encounter-2"));
+		assertThat(opened.getClaimedUntil(), equalTo(windowEnd));
+	}
+
+	private static Obs obs(String uuid) {
+		Obs obs = new Obs();
+		obs.setUuid(uuid);
+		return obs;
+	}
+}
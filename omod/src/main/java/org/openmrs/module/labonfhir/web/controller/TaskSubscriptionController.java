@@ -0,0 +1,177 @@
+package org.openmrs.module.labonfhir.web.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.commons.lang.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.Task;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.scheduler.TaskNotificationImporter;
+import org.openmrs.module.webservices.rest.web.RestConstants;
+import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * The rest-hook endpoint of the LIS's Subscription to completed Tasks of this instance. A notification only queues the
+ * Tasks it names on the {@link TaskNotificationImporter} and is answered straight away; notifications without Task
+ * ids make the importer poll from the checkpoint instead. The endpoint of the Subscription is
+ * {@code /ws/rest/v1/labonfhir/subscription}, to which the LIS posts its notification bundles, or PUTs Task/id with an
+ * id-only or full-resource payload.
+ */
+@Controller
+@RequestMapping(value = "/rest/" + RestConstants.VERSION_1 + "/labonfhir/subscription")
+public class TaskSubscriptionController extends BaseRestController {
+
+	private static final Logger log = LoggerFactory.getLogger(TaskSubscriptionController.class);
+
+	public static final String SECRET_HEADER = "X-Lab-Subscription-Secret";
+
+	private static final Pattern FHIR_ID = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+
+	@Autowired
+	private LabOnFhirConfig config;
+
+	@Autowired
+	private TaskNotificationImporter importer;
+
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext ctx;
+
+	@RequestMapping(method = { RequestMethod.POST, RequestMethod.PUT })
+	public ResponseEntity<Void> receiveNotification(
+	        @RequestHeader(value = SECRET_HEADER, required = false) String secret,
+	        @RequestBody(required = false) String body) {
+		if (!isAuthorized(secret)) {
+			return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+		}
+
+		IBaseResource notification;
+		try {
+			notification = StringUtils.isBlank(body) ? null : parser(body).parseResource(body);
+		}
+		catch (DataFormatException e) {
+			log.warn("Could not parse a Task Subscription notification: {}", e.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+
+		if (isHandshakeOrHeartbeat(notification)) {
+			return new ResponseEntity<>(HttpStatus.OK);
+		}
+		Set<String> taskIds = getTaskIds(notification);
+		log.debug("Task Subscription notification for Tasks {}", taskIds);
+		return accepted(taskIds.isEmpty() ? importer.requestPoll() : importer.enqueue(taskIds));
+	}
+
+	@RequestMapping(value = "/Task/{taskId}", method = { RequestMethod.POST, RequestMethod.PUT })
+	public ResponseEntity<Void> receiveTaskNotification(@PathVariable("taskId") String taskId,
+	        @RequestHeader(value = SECRET_HEADER, required = false) String secret) {
+		if (!isAuthorized(secret)) {
+			return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+		}
+		if (!FHIR_ID.matcher(taskId).matches()) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+
+		// whatever the payload holds, the Task is fetched from the LIS, so only its id is used
+		return accepted(importer.enqueue(Collections.singleton(taskId)));
+	}
+
+	/**
+	 * The secret, when one is set, is compared in constant time; without one, the notification needs the credentials of
+	 * an OpenMRS user
+	 */
+	private boolean isAuthorized(String secret) {
+		String expected = config.getSubscriptionSecret();
+		if (expected == null) {
+			return Context.isAuthenticated();
+		}
+		return secret != null && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+		    secret.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private IParser parser(String body) {
+		return body.trim().startsWith("<") ? ctx.newXmlParser() : ctx.newJsonParser();
+	}
+
+	/**
+	 * @return true for the notifications that only tell the Subscription is alive
+	 */
+	private static boolean isHandshakeOrHeartbeat(IBaseResource notification) {
+		if (!(notification instanceof Bundle)) {
+			return false;
+		}
+		Bundle bundle = (Bundle) notification;
+		if (!bundle.hasEntry() || !(bundle.getEntryFirstRep().getResource() instanceof Parameters)) {
+			return false;
+		}
+		for (Parameters.ParametersParameterComponent parameter : ((Parameters) bundle.getEntryFirstRep().getResource())
+		        .getParameter()) {
+			if ("type".equals(parameter.getName()) && parameter.hasValue()) {
+				String type = parameter.getValue().primitiveValue();
+				return "handshake".equals(type) || "heartbeat".equals(type);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the ids of the Tasks a notification names, as full-resource entries, or id-only entries with just a
+	 *         fullUrl
+	 */
+	private static Set<String> getTaskIds(IBaseResource notification) {
+		Set<String> taskIds = new LinkedHashSet<>();
+		if (notification instanceof Task) {
+			addTaskId(taskIds, ((Task) notification).getIdElement());
+		} else if (notification instanceof Bundle) {
+			for (Bundle.BundleEntryComponent entry : ((Bundle) notification).getEntry()) {
+				if (entry.getResource() instanceof Task) {
+					addTaskId(taskIds, entry.getResource().getIdElement());
+				} else if (!entry.hasResource() && entry.hasFullUrl()) {
+					IdType id = new IdType(entry.getFullUrl());
+					if (ResourceType.Task.name().equals(id.getResourceType())) {
+						addTaskId(taskIds, id);
+					}
+				}
+			}
+		}
+		return taskIds;
+	}
+
+	private static void addTaskId(Set<String> taskIds, IdType id) {
+		if (id.getIdPart() != null && FHIR_ID.matcher(id.getIdPart()).matches()) {
+			taskIds.add(id.getIdPart());
+		}
+	}
+
+	/**
+	 * The LIS is told to retry while the connector isn't running
+	 */
+	private static ResponseEntity<Void> accepted(boolean queued) {
+		return new ResponseEntity<>(queued ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+	}
+}
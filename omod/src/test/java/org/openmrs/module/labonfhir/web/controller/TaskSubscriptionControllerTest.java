@@ -0,0 +1,137 @@
+package org.openmrs.module.labonfhir.web.controller;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.labonfhir.LabOnFhirConfig;
+import org.openmrs.module.labonfhir.api.scheduler.TaskNotificationImporter;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TaskSubscriptionControllerTest {
+
+	private static final FhirContext CTX = FhirContext.forR4();
+
+	private static final String SECRET = "lis-secret";
+
+	@Mock
+	private LabOnFhirConfig config;
+
+	@Mock
+	private TaskNotificationImporter importer;
+
+	@Mock
+	private UserContext userContext;
+
+	@InjectMocks
+	private TaskSubscriptionController controller;
+
+	private String notification;
+
+	@Before
+	public void setup() {
+		ReflectionTestUtils.setField(controller, "ctx", CTX);
+		Context.setUserContext(userContext);
+		when(config.getSubscriptionSecret()).thenReturn(SECRET);
+		when(importer.enqueue(Matchers.anyCollectionOf(String.class))).thenReturn(true);
+
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.HISTORY);
+		bundle.addEntry().setResource((Task) new Task().setId("lis-task-1"));
+		bundle.addEntry().setFullUrl("http://lis/fhir/Task/lis-task-2");
+		notification = CTX.newJsonParser().encodeResourceToString(bundle);
+	}
+
+	@After
+	public void tearDown() {
+		Context.clearUserContext();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void receiveNotification_shouldQueueTheTasksOfANotificationWithTheSecret() {
+		assertThat(controller.receiveNotification(SECRET, notification).getStatusCode(), equalTo(HttpStatus.OK));
+
+		ArgumentCaptor<Collection> taskIds = ArgumentCaptor.forClass(Collection.class);
+		verify(importer).enqueue(taskIds.capture());
+		assertThat((Collection<String>) taskIds.getValue(), contains("lis-task-1", "lis-task-2"));
+	}
+
+	@Test
+	public void receiveNotification_shouldRejectANotificationWithAWrongOrMissingSecret() {
+		assertThat(controller.receiveNotification("not-the-secret", notification).getStatusCode(),
+		    equalTo(HttpStatus.UNAUTHORIZED));
+		assertThat(controller.receiveNotification(null, notification).getStatusCode(), equalTo(HttpStatus.UNAUTHORIZED));
+		assertThat(controller.receiveTaskNotification("lis-task-1", null).getStatusCode(),
+		    equalTo(HttpStatus.UNAUTHORIZED));
+
+		verifyZeroInteractions(importer);
+	}
+
+	@Test
+	public void receiveNotification_shouldNotTakeTheUserForTheSecret() {
+		// an OpenMRS login doesn't stand in for the secret once one is set
+		when(userContext.getAuthenticatedUser()).thenReturn(new User());
+
+		assertThat(controller.receiveNotification(null, notification).getStatusCode(), equalTo(HttpStatus.UNAUTHORIZED));
+		verifyZeroInteractions(importer);
+	}
+
+	@Test
+	public void receiveNotification_shouldRejectAnUnauthenticatedNotificationWithoutASecretSet() {
+		when(config.getSubscriptionSecret()).thenReturn(null);
+		when(userContext.getAuthenticatedUser()).thenReturn(null);
+
+		assertThat(controller.receiveNotification(SECRET, notification).getStatusCode(),
+		    equalTo(HttpStatus.UNAUTHORIZED));
+		verify(importer, never()).enqueue(Matchers.anyCollectionOf(String.class));
+	}
+
+	@Test
+	public void receiveNotification_shouldQueueTheTasksOfAnAuthenticatedNotificationWithoutASecretSet() {
+		when(config.getSubscriptionSecret()).thenReturn(null);
+		when(userContext.getAuthenticatedUser()).thenReturn(new User());
+
+		assertThat(controller.receiveNotification(null, notification).getStatusCode(), equalTo(HttpStatus.OK));
+		verify(importer).enqueue(Matchers.anyCollectionOf(String.class));
+	}
+
+	@Test
+	public void receiveTaskNotification_shouldQueueTheTaskWithTheSecret() {
+		assertThat(controller.receiveTaskNotification("lis-task-1", SECRET).getStatusCode(), equalTo(HttpStatus.OK));
+
+		verify(importer).enqueue(Collections.singleton("lis-task-1"));
+	}
+
+	@Test
+	public void receiveNotification_shouldTellTheLisToRetryWhileTheImporterIsStopped() {
+		when(importer.enqueue(Matchers.anyCollectionOf(String.class))).thenReturn(false);
+
+		assertThat(controller.receiveNotification(SECRET, notification).getStatusCode(),
+		    equalTo(HttpStatus.SERVICE_UNAVAILABLE));
+	}
+}